@@ -0,0 +1,171 @@
+package biocode.fims.fuseki;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a writing thread to a reading thread through a bounded queue of byte chunks. The writer blocks once
+ * capacity chunks are waiting to be read, so at most capacity * chunkSize bytes are held in memory no matter how much
+ * is written.
+ * <p>
+ * If the writer fails, it calls {@link #fail(Throwable)} and the reader gets an IOException with the failure as the
+ * cause instead of a normal end of stream. If the reader closes its stream early, further writes throw an IOException.
+ */
+class BlockingPipe {
+    // marks the end of the stream
+    private static final byte[] END = new byte[0];
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final BlockingQueue<byte[]> queue;
+    private final int chunkSize;
+    private volatile Throwable failure;
+    private volatile boolean readerClosed = false;
+
+    BlockingPipe(int capacity, int chunkSize) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.chunkSize = chunkSize;
+    }
+
+    OutputStream getOutputStream() {
+        return new PipeOutputStream();
+    }
+
+    InputStream getInputStream() {
+        return new PipeInputStream();
+    }
+
+    /**
+     * End the stream with an error. Anything written, but not yet read, is dropped
+     *
+     * @param cause
+     */
+    void fail(Throwable cause) {
+        failure = cause;
+        queue.clear();
+        queue.offer(END);
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            while (!queue.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (readerClosed) {
+                    throw new IOException("pipe closed by the reader");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        private byte[] buffer = new byte[chunkSize];
+        private int count = 0;
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flush();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                byte[] chunk = new byte[count];
+                System.arraycopy(buffer, 0, chunk, 0, count);
+                put(chunk);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                flush();
+                put(END);
+                closed = true;
+            }
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private byte[] chunk;
+        private int pos = 0;
+        private boolean ended = false;
+
+        /**
+         * @return false if the end of the stream was reached
+         */
+        private boolean nextChunk() throws IOException {
+            while (!ended && (chunk == null || pos == chunk.length)) {
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+
+                if (chunk == END) {
+                    ended = true;
+                }
+            }
+
+            if (ended && failure != null) {
+                throw new IOException("failed writing to the pipe", failure);
+            }
+            return !ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            readerClosed = true;
+            // unblock a writer waiting for space
+            queue.clear();
+        }
+    }
+}
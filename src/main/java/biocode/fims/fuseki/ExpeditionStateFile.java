@@ -0,0 +1,100 @@
+package biocode.fims.fuseki;
+
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * A value per (project, expedition), persisted to a properties file for the batch tools to pick up where a previous
+ * run left off.
+ * <p>
+ * The file is rewritten atomically after every change, through a .tmp file which is renamed over it, so an
+ * interrupted run never leaves a partial file and loses at most the change in progress.
+ */
+public class ExpeditionStateFile {
+    private final File stateFile;
+    private final String comment;
+    private final Properties values = new Properties();
+
+    /**
+     * @param stateFile loaded if it exists, otherwise it is created once the first value is set
+     * @param comment   written at the top of the file, describing the values
+     */
+    public ExpeditionStateFile(File stateFile, String comment) {
+        this.stateFile = stateFile;
+        this.comment = comment;
+
+        if (stateFile.exists()) {
+            try (InputStream in = new FileInputStream(stateFile)) {
+                values.load(in);
+            } catch (IOException e) {
+                throw new FimsRuntimeException(500, e);
+            }
+        }
+    }
+
+    /**
+     * @param projectId
+     * @param expeditionCode
+     * @return the expedition's value, or null if none is set
+     */
+    public synchronized String get(int projectId, String expeditionCode) {
+        return values.getProperty(getKey(projectId, expeditionCode));
+    }
+
+    public synchronized void set(int projectId, String expeditionCode, String value) {
+        values.setProperty(getKey(projectId, expeditionCode), value);
+        write();
+    }
+
+    /**
+     * @param projectId
+     * @param expeditionCode
+     * @return true if the expedition had a value
+     */
+    public synchronized boolean remove(int projectId, String expeditionCode) {
+        if (values.remove(getKey(projectId, expeditionCode)) == null) {
+            return false;
+        }
+        write();
+        return true;
+    }
+
+    /**
+     * @param projectId
+     * @param value
+     * @return true if any expedition of the project has this value
+     */
+    public synchronized boolean hasValue(int projectId, String value) {
+        String prefix = projectId + "/";
+        for (String key : values.stringPropertyNames()) {
+            if (key.startsWith(prefix) && value.equals(values.getProperty(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write() {
+        File tempFile = new File(stateFile.getAbsolutePath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            values.store(out, comment);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), stateFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+
+    private static String getKey(int projectId, String expeditionCode) {
+        return projectId + "/" + expeditionCode;
+    }
+}
@@ -0,0 +1,334 @@
+package biocode.fims.fuseki;
+
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.resultset.XMLInput;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Http client used for all requests to Fuseki, so that uploads, queries and updates share a pool of keep-alive
+ * connections instead of opening a new connection per request.
+ * <p>
+ * Responses are requested with gzip/deflate content encoding and transparently decompressed. Request bodies are sent
+ * uncompressed, as Fuseki doesn't accept compressed request bodies.
+ * <p>
+ * The number of requests, failures, and the time spent is recorded per endpoint (the url without the query string).
+ */
+public class FusekiClient {
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    // queries of large projects and large uploads can take a long time
+    public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    // how long to wait for a free connection from the pool
+    private static final int CONNECTION_REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 30;
+
+    private static final String SPARQL_RESULTS_XML = "application/sparql-results+xml";
+    private static final String CONSTRUCT_ACCEPT = "text/turtle, application/n-triples;q=0.9, application/rdf+xml;q=0.8";
+
+    private static Logger logger = LoggerFactory.getLogger(FusekiClient.class);
+
+    private static FusekiClient sharedClient;
+
+    private final CloseableHttpClient httpClient;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final Map<String, EndpointMetrics> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConnections       maximum number of open connections, in total and per Fuseki host
+     * @param connectTimeoutMillis
+     * @param socketTimeoutMillis  maximum time to wait for data once connected
+     */
+    public FusekiClient(int maxConnections, int connectTimeoutMillis, int socketTimeoutMillis) {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        // all requests go to a single Fuseki host, so let it use the whole pool
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_MILLIS)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @return the client shared by all Fuseki traffic, created with the default settings on first use
+     */
+    public static synchronized FusekiClient getInstance() {
+        if (sharedClient == null) {
+            sharedClient = new FusekiClient(DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                    DEFAULT_SOCKET_TIMEOUT_MILLIS);
+        }
+        return sharedClient;
+    }
+
+    /**
+     * Replace the shared client with one using these settings. Meant to be called on startup, before any requests
+     * are made, as the previous client is closed
+     *
+     * @param maxConnections
+     * @param connectTimeoutMillis
+     * @param socketTimeoutMillis
+     */
+    public static synchronized void configure(int maxConnections, int connectTimeoutMillis, int socketTimeoutMillis) {
+        FusekiClient previous = sharedClient;
+        sharedClient = new FusekiClient(maxConnections, connectTimeoutMillis, socketTimeoutMillis);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Close all pooled connections
+     */
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("IOException closing http client", e);
+        }
+    }
+
+    /**
+     * Stream the body to the url in a single chunked POST request
+     *
+     * @param url
+     * @param contentType
+     * @param body
+     * @throws IOException if the request fails or the service doesn't respond with a 2xx status
+     */
+    public void post(String url, String contentType, InputStream body) throws IOException {
+        HttpPost post = new HttpPost(url);
+        // unknown length, so the body is sent with chunked transfer encoding instead of being buffered
+        post.setEntity(new InputStreamEntity(body, -1, ContentType.parse(contentType)));
+
+        execute(post, null);
+    }
+
+    /**
+     * Run a CONSTRUCT query against a sparql query service
+     *
+     * @param queryService
+     * @param query
+     * @return the constructed Model
+     */
+    public Model construct(String queryService, String query) {
+        HttpPost post = new HttpPost(queryService);
+        post.setHeader("Accept", CONSTRUCT_ACCEPT);
+        post.setEntity(form("query", query));
+
+        Model model = ModelFactory.createDefaultModel();
+        try {
+            execute(post, entity -> model.read(entity.getContent(), null, getRdfLang(entity)));
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+        return model;
+    }
+
+    /**
+     * Run a SELECT query against a sparql query service
+     *
+     * @param queryService
+     * @param query
+     * @return the results, read into memory so the connection can be returned to the pool
+     */
+    public ResultSetRewindable select(String queryService, String query) {
+        HttpPost post = new HttpPost(queryService);
+        post.setHeader("Accept", SPARQL_RESULTS_XML);
+        post.setEntity(form("query", query));
+
+        ResultSetRewindable[] results = new ResultSetRewindable[1];
+        try {
+            execute(post, entity -> results[0] = ResultSetFactory.copyResults(
+                    ResultSetFactory.fromXML(entity.getContent())));
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+        return results[0];
+    }
+
+    /**
+     * Run an ASK query against a sparql query service
+     *
+     * @param queryService
+     * @param query
+     * @return
+     */
+    public boolean ask(String queryService, String query) {
+        HttpPost post = new HttpPost(queryService);
+        post.setHeader("Accept", SPARQL_RESULTS_XML);
+        post.setEntity(form("query", query));
+
+        boolean[] result = new boolean[1];
+        try {
+            execute(post, entity -> result[0] = XMLInput.booleanFromXML(entity.getContent()));
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+        return result[0];
+    }
+
+    /**
+     * Run a sparql update request against a sparql update service
+     *
+     * @param updateService
+     * @param update
+     */
+    public void update(String updateService, String update) {
+        HttpPost post = new HttpPost(updateService);
+        post.setEntity(form("update", update));
+
+        try {
+            execute(post, null);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+
+    /**
+     * @return the metrics recorded for each endpoint
+     */
+    public Map<String, EndpointMetrics> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    public void logMetrics() {
+        for (Map.Entry<String, EndpointMetrics> entry : metrics.entrySet()) {
+            EndpointMetrics m = entry.getValue();
+            logger.info("{}: {} requests, {} failures, {} ms total, {} ms average",
+                    entry.getKey(), m.getRequests(), m.getFailures(), m.getTotalMillis(), m.getAverageMillis());
+        }
+        logger.info("connection pool: {}", connectionManager.getTotalStats());
+    }
+
+    /**
+     * Handles the entity of a successful response
+     */
+    private interface EntityHandler {
+        void handle(HttpEntity entity) throws IOException;
+    }
+
+    /**
+     * Execute the request, passing the response entity to the handler. The entity is always consumed so the
+     * connection can be kept alive and reused
+     */
+    private void execute(HttpPost request, EntityHandler handler) throws IOException {
+        EndpointMetrics endpointMetrics = metrics.computeIfAbsent(getEndpoint(request), k -> new EndpointMetrics());
+        long start = System.nanoTime();
+        boolean success = false;
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            HttpEntity entity = response.getEntity();
+            try {
+                int status = response.getStatusLine().getStatusCode();
+                if (status < 200 || status >= 300) {
+                    String message = response.getStatusLine().getReasonPhrase();
+                    if (entity != null) {
+                        message += ": " + EntityUtils.toString(entity, StandardCharsets.UTF_8);
+                    }
+                    throw new HttpResponseException(status, message);
+                }
+
+                if (handler != null && entity != null) {
+                    handler.handle(entity);
+                }
+                success = true;
+            } finally {
+                EntityUtils.consume(entity);
+            }
+        } finally {
+            endpointMetrics.record(System.nanoTime() - start, success);
+        }
+    }
+
+    private static UrlEncodedFormEntity form(String name, String value) {
+        NameValuePair pair = new BasicNameValuePair(name, value);
+        return new UrlEncodedFormEntity(Collections.singletonList(pair), StandardCharsets.UTF_8);
+    }
+
+    private static String getEndpoint(HttpPost request) {
+        return request.getURI().getScheme() + "://" + request.getURI().getAuthority() + request.getURI().getPath();
+    }
+
+    /**
+     * @return the jena language name of the rdf in the response
+     */
+    private static String getRdfLang(HttpEntity entity) {
+        String contentType = entity.getContentType() == null ? "" : entity.getContentType().getValue();
+        if (contentType.contains("turtle")) {
+            return "TURTLE";
+        } else if (contentType.contains("n-triples") || contentType.startsWith("text/plain")) {
+            return "N-TRIPLE";
+        }
+        return "RDF/XML";
+    }
+
+    /**
+     * Request counts and timing for a single endpoint
+     */
+    public static class EndpointMetrics {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        void record(long nanos, boolean success) {
+            requests.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            if (!success) {
+                failures.incrementAndGet();
+            }
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+        }
+
+        public long getAverageMillis() {
+            long count = requests.get();
+            return count == 0 ? 0 : getTotalMillis() / count;
+        }
+    }
+}
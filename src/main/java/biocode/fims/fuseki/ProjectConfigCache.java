@@ -0,0 +1,241 @@
+package biocode.fims.fuseki;
+
+import biocode.fims.config.ConfigurationFileFetcher;
+import biocode.fims.digester.Mapping;
+import biocode.fims.digester.Validation;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of each project's configuration file and its parsed {@link Mapping} and {@link Validation}, shared by the batch
+ * tools so a project's configuration is downloaded and parsed once per run instead of once per expedition or dataset.
+ * <p>
+ * A cached configuration is re-fetched once it is older than the refresh interval. If its content changed, the parsed
+ * Mapping and Validation are dropped and parsed again from the new configuration.
+ * <p>
+ * Mapping and Validation objects aren't safe to share between threads, so they are parsed once per project for each
+ * thread that asks for them. Batch tools use small fixed worker pools, so this is a handful of parses per project.
+ * <p>
+ * Configurations are downloaded outside of the map, one project at a time, so a download never holds up other
+ * projects, and threads keep using a project's previous configuration while it is being refreshed. Each download is
+ * moved to a file named by its checksum, and the file of a configuration which changed is deleted once it has been
+ * superseded for a refresh interval.
+ */
+public class ProjectConfigCache {
+    public static final long DEFAULT_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static Logger logger = LoggerFactory.getLogger(ProjectConfigCache.class);
+
+    private static ProjectConfigCache sharedCache;
+
+    private final File configDirectory;
+    private final long refreshMillis;
+    private final Map<Integer, CachedConfig> configs = new ConcurrentHashMap<>();
+    // only one thread downloads a project's configuration at a time
+    private final Map<Integer, Lock> fetchLocks = new ConcurrentHashMap<>();
+    // superseded configurations, whose files are deleted once no thread should still be reading them
+    private final Queue<CachedConfig> retired = new ConcurrentLinkedQueue<>();
+
+    private static class CachedConfig {
+        // named by checksum, so it never changes once written
+        final File configFile;
+        final String checksum;
+        volatile long fetchedAt;
+        volatile long retiredAt;
+        final ThreadLocal<Mapping> mapping;
+        final ThreadLocal<Validation> validation;
+
+        CachedConfig(File configFile, String checksum) {
+            this.configFile = configFile;
+            this.checksum = checksum;
+            this.fetchedAt = System.currentTimeMillis();
+            this.mapping = ThreadLocal.withInitial(() -> {
+                Mapping m = new Mapping();
+                m.addMappingRules(configFile);
+                return m;
+            });
+            this.validation = ThreadLocal.withInitial(() -> {
+                Validation v = new Validation();
+                v.addValidationRules(configFile, mapping.get());
+                return v;
+            });
+        }
+    }
+
+    /**
+     * @param configDirectory where the configuration files are downloaded
+     * @param refreshMillis   how long a configuration is used before checking it for changes
+     */
+    public ProjectConfigCache(File configDirectory, long refreshMillis) {
+        this.configDirectory = configDirectory;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * @return the cache shared by all batch tools, downloading to java.io.tmpdir
+     */
+    public static synchronized ProjectConfigCache getInstance() {
+        if (sharedCache == null) {
+            sharedCache = new ProjectConfigCache(new File(System.getProperty("java.io.tmpdir")), DEFAULT_REFRESH_MILLIS);
+        }
+        return sharedCache;
+    }
+
+    /**
+     * @param projectId
+     * @return the project's configuration file. The file isn't modified if the configuration changes later, but it is
+     * deleted once it has been superseded for a refresh interval
+     */
+    public File getConfigFile(int projectId) {
+        return getConfig(projectId).configFile;
+    }
+
+    /**
+     * @param projectId
+     * @return the project's Mapping, parsed for the calling thread. It must not be passed to other threads
+     */
+    public Mapping getMapping(int projectId) {
+        return getConfig(projectId).mapping.get();
+    }
+
+    /**
+     * @param projectId
+     * @return the project's Validation, parsed for the calling thread. It must not be passed to other threads
+     */
+    public Validation getValidation(int projectId) {
+        return getConfig(projectId).validation.get();
+    }
+
+    /**
+     * Drop the project's configuration, so it is fetched and parsed again when next used
+     *
+     * @param projectId
+     */
+    public void invalidate(int projectId) {
+        CachedConfig removed = configs.remove(projectId);
+        if (removed != null) {
+            retire(removed);
+        }
+    }
+
+    private CachedConfig getConfig(int projectId) {
+        CachedConfig config = configs.get(projectId);
+        if (config != null && isFresh(config)) {
+            return config;
+        }
+
+        Lock lock = fetchLocks.computeIfAbsent(projectId, id -> new ReentrantLock());
+        if (config != null && !lock.tryLock()) {
+            // another thread is refreshing it, keep using the current configuration in the meantime
+            return config;
+        }
+        if (config == null) {
+            lock.lock();
+        }
+
+        try {
+            // another thread may have fetched it while we waited
+            CachedConfig current = configs.get(projectId);
+            if (current != null && isFresh(current)) {
+                return current;
+            }
+
+            CachedConfig fetched = fetch(projectId, current);
+            if (fetched != current) {
+                configs.put(projectId, fetched);
+                if (current != null) {
+                    retire(current);
+                }
+            }
+            return fetched;
+        } finally {
+            lock.unlock();
+            deleteRetiredFiles();
+        }
+    }
+
+    private boolean isFresh(CachedConfig config) {
+        return System.currentTimeMillis() - config.fetchedAt < refreshMillis;
+    }
+
+    private CachedConfig fetch(int projectId, CachedConfig current) {
+        File fetched = new ConfigurationFileFetcher(projectId, configDirectory.getAbsolutePath(), false).getOutputFile();
+        String checksum = checksum(fetched);
+
+        try {
+            if (current != null && current.checksum.equals(checksum)) {
+                current.fetchedAt = System.currentTimeMillis();
+                return current;
+            }
+
+            if (current != null) {
+                logger.info("configuration of project {} changed", projectId);
+            }
+
+            File configFile = new File(configDirectory, "config_" + projectId + "_" + checksum + ".xml");
+            if (!configFile.exists()) {
+                Files.move(fetched.toPath(), configFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new CachedConfig(configFile, checksum);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        } finally {
+            // nothing is read from the download itself, only from the checksum named copy
+            fetched.delete();
+        }
+    }
+
+    private void retire(CachedConfig config) {
+        config.retiredAt = System.currentTimeMillis();
+        retired.add(config);
+    }
+
+    /**
+     * Delete the files of the configurations superseded more than a refresh interval ago. Threads which were given one
+     * will have parsed it by then, as they parse it straight away. A file is kept if the configuration changed back
+     * to it since.
+     */
+    private void deleteRetiredFiles() {
+        for (Iterator<CachedConfig> it = retired.iterator(); it.hasNext(); ) {
+            CachedConfig config = it.next();
+            if (System.currentTimeMillis() - config.retiredAt < refreshMillis) {
+                continue;
+            }
+            it.remove();
+
+            boolean inUse = false;
+            for (CachedConfig current : configs.values()) {
+                inUse |= current.configFile.equals(config.configFile);
+            }
+            if (!inUse) {
+                config.configFile.delete();
+            }
+        }
+    }
+
+    private static String checksum(File file) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return DatatypeConverter.printHexBinary(digest.digest(Files.readAllBytes(file.toPath())));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+}
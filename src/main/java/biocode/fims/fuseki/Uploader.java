@@ -1,24 +1,37 @@
 package biocode.fims.fuseki;
 
 import biocode.fims.fimsExceptions.FimsRuntimeException;
-import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.query.ReadWrite;
-import com.hp.hpl.jena.tdb.TDBFactory;
-import com.hp.hpl.jena.update.*;
-import org.openjena.atlas.lib.StrUtils;
+import biocode.fims.fuseki.triplify.Triplifier;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotReader;
 
 //import org.apache.jena.atlas.lib.StrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Uploader sends files to a particular service and a particular graph
@@ -35,6 +48,15 @@ public class Uploader {
     private String connectionPoint;
     private String graphID;
 
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+    // size and number of the chunks buffered between the triple writer and the request in executeStreaming
+    private static final int PIPE_CHUNK_SIZE = 64 * 1024;
+    private static final int PIPE_CAPACITY = 16;
+    // number of triples sent in each INSERT DATA request by safeExecute
+    private static final int DEFAULT_TRIPLES_PER_UPDATE = 10000;
+    // property of the marker triple recording the checksum of the triples added by executeIfAbsent
+    private static final String TRIPLES_CHECKSUM = "urn:fims:triplesChecksum";
+
     private static Logger logger = LoggerFactory.getLogger(Uploader.class);
 
     public String getConnectionPoint() {
@@ -52,6 +74,18 @@ public class Uploader {
         return graphID;
     }
 
+    /**
+     * Use the given graph ID, updating the endpoint to match
+     */
+    private void setGraphID(String graphID) {
+        this.graphID = graphID;
+        try {
+            this.endpoint = service + "?graph=" + URLEncoder.encode(graphID, encoding);
+        } catch (UnsupportedEncodingException e) {
+            logger.warn("UnsupportedEncodingException", e);
+        }
+    }
+
     /**
      * Constructor called without a graph specification uses a UUID for the graph
      * TODO: fetch an ARK for this graph-name and make the fuseki service the target, add expedition code etc...
@@ -73,6 +107,15 @@ public class Uploader {
         this.file = file;
     }
 
+    /**
+     * Constructor for uploads without a file, see {@link #executeStreaming(TripleWriter)}. Uses a UUID for the graph
+     *
+     * @param fusekiService
+     */
+    public Uploader(String fusekiService) {
+        this(fusekiService, null);
+    }
+
     public Uploader(String fusekiService, File file, String graphID) {
         this.graphID = graphID;
 
@@ -89,82 +132,566 @@ public class Uploader {
     /**
      * Execute the data update.  This method is NOT transaction safe and if it is used, reccomend backing up loaded data
      * in case of data corruption
+     * <p>
+     * The file is streamed to the service using chunked transfer encoding, so files of any size can be uploaded
+     * without being buffered in memory.
      *
      * @method execute the update
      */
     public String execute() {
-        try {
-            // Setup URL connection to this endpoint
-            URL url = new URL(endpoint);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Content-Type", contentType);
-            conn.setRequestMethod(method);
-
-            // Write the file to the connection, sending contents directly to the service
-            WritableByteChannel channel = Channels.newChannel(conn.getOutputStream());
-            new FileInputStream(file).getChannel().transferTo(0, 9999999, channel);
-
-            // Get the response from the service
-            BufferedReader rd = new BufferedReader(new
-                    InputStreamReader(conn.getInputStream()));
-            String line;
-            while ((line = rd.readLine()) != null) {
-                // Process line...
-            }
-            rd.close();
-        } catch (MalformedURLException e) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            post(in);
+        } catch (IOException e) {
             // throw a general exception here since we want to inform the call application of any mis-deeds
             // typically this will be the service being down
             throw new FimsRuntimeException(500, e);
+        }
+        return graphID;
+    }
+
+    /**
+     * Writes triples, as turtle, to the given Writer
+     */
+    public interface TripleWriter {
+        void write(Writer writer) throws IOException;
+    }
+
+    /**
+     * Execute the data update, streaming the triples written by the tripleWriter directly into the request body
+     * as they are produced. The tripleWriter runs on a separate thread, and is handed off to the request through a
+     * bounded queue, so the upload starts before all triples are written and no file is needed.
+     * <p>
+     * If the tripleWriter fails, the request is aborted and nothing is committed to the graph.
+     *
+     * @param tripleWriter
+     * @return
+     */
+    public String executeStreaming(TripleWriter tripleWriter) {
+        BlockingPipe pipe = new BlockingPipe(PIPE_CAPACITY, PIPE_CHUNK_SIZE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        Future<?> producer = executor.submit(() -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(pipe.getOutputStream(), StandardCharsets.UTF_8));
+            try {
+                tripleWriter.write(writer);
+                writer.close();
+            } catch (Throwable t) {
+                pipe.fail(t);
+                throw t;
+            }
+            return null;
+        });
+
+        try {
+            try (InputStream in = pipe.getInputStream()) {
+                post(in);
+            }
+            producer.get();
         } catch (IOException e) {
+            producer.cancel(true);
+            // a failure writing the triples is more useful than the aborted request
+            if (e.getCause() instanceof FimsRuntimeException) {
+                throw (FimsRuntimeException) e.getCause();
+            }
             throw new FimsRuntimeException(500, e);
+        } catch (InterruptedException e) {
+            producer.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new FimsRuntimeException(500, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FimsRuntimeException) {
+                throw (FimsRuntimeException) e.getCause();
+            }
+            throw new FimsRuntimeException(500, e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
         return graphID;
     }
 
     /**
-     * This is a Transaction-Safe execute that updates data using Write-Ahead-Logging on
-     * Fuseki system.  This will prevent corruption in dataset if server goes down during aload.
+     * Add the triples of the model to the graph, unless they were already added. Used for graphs shared by many
+     * uploads, such as the schema graph of a project, so the same triples aren't re-sent every time.
+     * <p>
+     * The triples are added along with a marker triple holding their checksum, in the same request, so only the
+     * marker needs to be asked for, however many triples there are
      *
+     * @param model
      * @return
      */
-    public String safeExecute()  {
-        // Dummy insert statement
-        String insert =
-                //"INSERT DATA INTO <" + this.getGraphID() + "> {  <http://example/book3> <http://example/book4> \"newValue1\"}\n";
-                null;
+    public String executeIfAbsent(Model model) {
+        if (model.isEmpty()) {
+            return graphID;
+        }
+
+        StringWriter triples = new StringWriter();
+        ExtendedIterator<Triple> it = model.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
         try {
-            insert = //"PREFIX ark: <http://n2t.net/ark:> \n" +
-                    "INSERT DATA INTO <" + this.getGraphID() + "> {  " + readFile(file.getAbsolutePath()) + "}\n";
+            while (it.hasNext()) {
+                Triplifier.writeTriple(triples, it.next());
+            }
         } catch (IOException e) {
-            throw new FimsRuntimeException(500,e);
+            throw new FimsRuntimeException(500, e);
+        } finally {
+            it.close();
         }
 
-        Dataset dataset = TDBFactory.createDataset();
+        String marker = "<" + graphID + "> <" + TRIPLES_CHECKSUM + "> \"" + getChecksum(triples.toString()) + "\" .\n";
+
+        // Swaps "data" with "query" the same way the update service is found
+        String queryService = this.getService().replace("data", "query");
+        if (FusekiClient.getInstance().ask(queryService, "ASK { GRAPH <" + graphID + "> { " + marker + "} }")) {
+            logger.debug("{} already contains all {} triples", graphID, model.size());
+            return graphID;
+        }
 
+        // N-Triples are valid turtle
+        byte[] body = (triples + marker).getBytes(StandardCharsets.UTF_8);
         try {
-            dataset.begin(ReadWrite.WRITE);
+            post(new ByteArrayInputStream(body));
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+        logger.info("added {} triples to {}", model.size(), graphID);
+        return graphID;
+    }
+
+    /**
+     * @param triples N-Triples, one per line
+     * @return the SHA-1 of the sorted triples, which doesn't depend on the order the triples were listed in
+     */
+    private static String getChecksum(String triples) {
+        String[] lines = triples.split("\n");
+        Arrays.sort(lines);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String line : lines) {
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            return DatatypeConverter.printHexBinary(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+
+    /**
+     * Execute the data update, posting the file to the same graph in batches of triplesPerBatch triples. Each batch
+     * is retried up to maxRetries times before giving up. Since a graph is a set of triples, re-posting a batch
+     * that partially made it to the service is harmless.
+     * <p>
+     * Splitting is only possible for N-Triples files without blank nodes, as blank node labels are scoped to a single
+     * request. Any other file is uploaded with a single request, as in {@link #execute()}
+     *
+     * @param triplesPerBatch
+     * @param maxRetries
+     * @return
+     */
+    public String executeInBatches(int triplesPerBatch, int maxRetries) {
+        try {
+            if (!isSplittable()) {
+                logger.info("{} is not an N-Triples file without blank nodes, uploading in a single request", file.getName());
+                return execute();
+            }
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8))) {
+                ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                Writer batchWriter = new OutputStreamWriter(batch, StandardCharsets.UTF_8);
+                int triples = 0;
+                int batches = 0;
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    if (!isTriple(line)) {
+                        continue;
+                    }
+                    batchWriter.write(line);
+                    batchWriter.write("\n");
+                    triples++;
+
+                    if (triples == triplesPerBatch) {
+                        batchWriter.flush();
+                        byte[] body = batch.toByteArray();
+                        postWithRetry(() -> new ByteArrayInputStream(body), maxRetries);
+                        batches++;
+                        logger.debug("uploaded batch {} of {} triples to {}", batches, triples, graphID);
+                        batch.reset();
+                        triples = 0;
+                    }
+                }
+
+                if (triples > 0) {
+                    batchWriter.flush();
+                    byte[] body = batch.toByteArray();
+                    postWithRetry(() -> new ByteArrayInputStream(body), maxRetries);
+                    batches++;
+                    logger.debug("uploaded batch {} of {} triples to {}", batches, triples, graphID);
+                }
+            }
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+        return graphID;
+    }
 
-            String sparqlUpdateString = StrUtils.strjoinNL(insert);
-            UpdateRequest request = UpdateFactory.create(sparqlUpdateString);
+    /**
+     * Execute the data update by partitioning the file by subject into shards N-Triples files and posting them
+     * concurrently to the same graph, with at most shards requests in flight. Each shard is retried up to maxRetries
+     * times. Once all shards are uploaded, the number of triples in the graph is compared with the number of triples
+     * in the file.
+     * <p>
+     * As with {@link #executeInBatches(int, int)}, only N-Triples files without blank nodes can be partitioned. Any
+     * other file is uploaded with a single request.
+     *
+     * @param shards
+     * @param maxRetries
+     * @return
+     */
+    public String executeInParallel(int shards, int maxRetries) {
+        List<File> shardFiles = new ArrayList<>();
+        ExecutorService executor = null;
 
-            // Specify Update service.  Swaps "data" with "update" so we can maintain code consistency until we can
-            // refactor later, after we implement this in production
-            String updateService =  this.getService().replace("data","update");
-            UpdateProcessor proc = UpdateExecutionFactory.createRemote(request,updateService);
+        try {
+            if (shards < 2 || !isSplittable()) {
+                logger.info("uploading {} in a single request", file.getName());
+                return execute();
+            }
+
+            long triples = partitionBySubject(shards, shardFiles);
 
-            proc.execute();
+            executor = Executors.newFixedThreadPool(shards);
+            List<Future<?>> futures = new ArrayList<>();
+            for (File shardFile : shardFiles) {
+                futures.add(executor.submit(() -> {
+                    postWithRetry(() -> new BufferedInputStream(new FileInputStream(shardFile)), maxRetries);
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
 
-            // Finally, commit the transaction.
-            dataset.commit();
-            // Or call .abort()
+            long graphTriples = countGraphTriples();
+            if (graphTriples < triples) {
+                logger.warn("graph {} contains {} triples, expected {}. The file may contain duplicate triples, " +
+                        "or the upload is incomplete", graphID, graphTriples, triples);
+            } else {
+                logger.info("uploaded {} triples in {} shards into {}", triples, shards, graphID);
+            }
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FimsRuntimeException(500, e);
+        } catch (ExecutionException e) {
+            throw new FimsRuntimeException(500, e.getCause());
         } finally {
-            dataset.end();
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (File shardFile : shardFiles) {
+                shardFile.delete();
+            }
         }
         return graphID;
     }
 
+    /**
+     * Write the triples of the file to shards files, all triples with the same subject going to the same file
+     *
+     * @param shards
+     * @param shardFiles list to add the created files to
+     * @return the number of triples written
+     */
+    private long partitionBySubject(int shards, List<File> shardFiles) throws IOException {
+        List<Writer> writers = new ArrayList<>();
+        long triples = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < shards; i++) {
+                File shardFile = File.createTempFile(file.getName() + ".shard" + i + ".", ".nt", file.getParentFile());
+                shardFiles.add(shardFile);
+                writers.add(new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(shardFile), StandardCharsets.UTF_8)));
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!isTriple(line)) {
+                    continue;
+                }
+                String trimmed = line.trim();
+                // the subject of an N-Triple is an iri, which can't contain whitespace
+                String subject = trimmed.split("\\s", 2)[0];
+
+                Writer writer = writers.get(Math.floorMod(subject.hashCode(), shards));
+                writer.write(trimmed);
+                writer.write("\n");
+                triples++;
+            }
+        } finally {
+            for (Writer writer : writers) {
+                writer.close();
+            }
+        }
+
+        return triples;
+    }
+
+    /**
+     * @return the number of triples in this graph, according to the query service
+     */
+    private long countGraphTriples() {
+        // Swaps "data" with "query" the same way the update service is found
+        String queryService = this.getService().replace("data", "query");
+        String queryString = "SELECT (COUNT(*) AS ?count) WHERE { GRAPH <" + graphID + "> { ?s ?p ?o } }";
+
+        ResultSet results = FusekiClient.getInstance().select(queryService, queryString);
+        return results.hasNext() ? results.next().getLiteral("count").getLong() : 0;
+    }
+
+    /**
+     * Opens the body of a request. Called again for each retry
+     */
+    private interface RequestBody {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Post a single request body, retrying up to maxRetries times with a linear backoff
+     */
+    private void postWithRetry(RequestBody body, int maxRetries) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try (InputStream in = body.open()) {
+                post(in);
+                return;
+            } catch (IOException e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                logger.warn("failed to upload batch to " + graphID + ", retrying", e);
+                try {
+                    Thread.sleep(RETRY_BACKOFF_MILLIS * (attempt + 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream the contents of the InputStream to the endpoint in a single request, over a pooled connection
+     */
+    private void post(InputStream in) throws IOException {
+        FusekiClient.getInstance().post(endpoint, contentType, in);
+    }
+
+    /**
+     * @return true if every statement in the file is a single line N-Triple without blank nodes
+     */
+    private boolean isSplittable() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (!isTriple(trimmed)) {
+                    continue;
+                }
+                if (!trimmed.endsWith(".") || trimmed.startsWith("@") || trimmed.startsWith("_:") ||
+                        trimmed.contains(" _:")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false for blank and comment lines
+     */
+    private static boolean isTriple(String line) {
+        String trimmed = line.trim();
+        return !trimmed.isEmpty() && !trimmed.startsWith("#");
+    }
+
+    /**
+     * This is a Transaction-Safe execute that updates data using Write-Ahead-Logging on
+     * Fuseki system.  This will prevent corruption in dataset if server goes down during aload.
+     *
+     * @return
+     */
+    public String safeExecute() {
+        return safeExecute(DEFAULT_TRIPLES_PER_UPDATE, false);
+    }
+
+    /**
+     * Transaction-Safe execute which streams the file and sends it as a series of INSERT DATA requests of about
+     * triplesPerUpdate triples. Each request is committed by Fuseki on its own, and the number of committed
+     * triples is recorded in a progress file next to the triple file, which is removed once the upload completes.
+     * <p>
+     * If resume is true and a progress file exists, the upload continues with the triple after the last committed
+     * one, into the graph recorded in the progress file.
+     * <p>
+     * Blank node labels are scoped to a single request, so a batch is only ended between two subjects, keeping all
+     * the triples of a blank node subject in the same request. A blank node used by triples in more than one batch
+     * becomes a separate node in each.
+     *
+     * @param triplesPerUpdate
+     * @param resume
+     * @return
+     */
+    public String safeExecute(int triplesPerUpdate, boolean resume) {
+        File progressFile = new File(file.getAbsolutePath() + ".progress");
+        int committedBatches = 0;
+        long committedTriples = 0;
+
+        if (resume && progressFile.exists()) {
+            Properties progress = readProgress(progressFile);
+
+            setGraphID(progress.getProperty("graph"));
+            committedBatches = Integer.parseInt(progress.getProperty("committedBatches"));
+            committedTriples = Long.parseLong(progress.getProperty("committedTriples"));
+            logger.info("resuming upload of {} into {} after {} committed triples",
+                    file.getName(), graphID, committedTriples);
+        }
+
+        // Specify Update service.  Swaps "data" with "update" so we can maintain code consistency until we can
+        // refactor later, after we implement this in production
+        String updateService = this.getService().replace("data", "update");
+
+        UpdateBatchSink sink = new UpdateBatchSink(updateService, triplesPerUpdate, committedBatches, committedTriples,
+                progressFile);
+
+        Lang lang = Lang.guess(file.getName());
+        if (lang == null) {
+            lang = Lang.TURTLE;
+        }
+        RiotReader.parseTriples(file.getAbsolutePath(), lang, null, sink);
+        sink.flush();
+
+        logger.info("uploaded {} triples in {} batches into {}", sink.totalTriples, sink.committedBatches, graphID);
+
+        progressFile.delete();
+        return graphID;
+    }
+
+    private Properties readProgress(File progressFile) {
+        Properties progress = new Properties();
+        try (InputStream in = new FileInputStream(progressFile)) {
+            progress.load(in);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+        return progress;
+    }
+
+    /**
+     * Record the number of committed batches and triples. The file is replaced atomically so a crash never leaves a
+     * partial file
+     */
+    private void writeProgress(File progressFile, int committedBatches, long committedTriples) {
+        Properties progress = new Properties();
+        progress.setProperty("graph", graphID);
+        progress.setProperty("committedBatches", String.valueOf(committedBatches));
+        progress.setProperty("committedTriples", String.valueOf(committedTriples));
+
+        File tempFile = new File(progressFile.getAbsolutePath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            progress.store(out, "upload progress for " + file.getName());
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), progressFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+
+    /**
+     * Collects parsed triples into batches and sends each full batch as an INSERT DATA request, once the next triple
+     * has a different subject
+     */
+    private class UpdateBatchSink implements Sink<Triple> {
+        private final String updateService;
+        private final int triplesPerUpdate;
+        private final File progressFile;
+        // number of triples to skip, as they were committed in a previous run
+        private long triplesToSkip;
+        private StringWriter batch = new StringWriter();
+        private int batchTriples = 0;
+        // subject of the last triple in the batch
+        private Node batchSubject;
+        int committedBatches;
+        long committedTriples;
+        long totalTriples = 0;
+
+        UpdateBatchSink(String updateService, int triplesPerUpdate, int committedBatches, long committedTriples,
+                        File progressFile) {
+            this.updateService = updateService;
+            this.triplesPerUpdate = triplesPerUpdate;
+            this.committedBatches = committedBatches;
+            this.committedTriples = committedTriples;
+            this.progressFile = progressFile;
+            this.triplesToSkip = committedTriples;
+        }
+
+        @Override
+        public void send(Triple triple) {
+            totalTriples++;
+            if (triplesToSkip > 0) {
+                triplesToSkip--;
+                return;
+            }
+
+            if (batchTriples >= triplesPerUpdate && !triple.getSubject().equals(batchSubject)) {
+                flush();
+            }
+
+            try {
+                Triplifier.writeTriple(batch, triple);
+            } catch (IOException e) {
+                throw new FimsRuntimeException(500, e);
+            }
+            batchSubject = triple.getSubject();
+            batchTriples++;
+        }
+
+        /**
+         * Send the current batch, if there is one
+         */
+        @Override
+        public void flush() {
+            if (batchTriples == 0) {
+                return;
+            }
+
+            String insert = "INSERT DATA { GRAPH <" + graphID + "> {\n" + batch + "} }\n";
+            FusekiClient.getInstance().update(updateService, insert);
+
+            committedBatches++;
+            committedTriples += batchTriples;
+            writeProgress(progressFile, committedBatches, committedTriples);
+            logger.info("committed batch {} ({} triples) into {}", committedBatches, batchTriples, graphID);
+
+            batch = new StringWriter();
+            batchTriples = 0;
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
     public String getMethod() {
         return method;
     }
@@ -224,18 +751,5 @@ public class Uploader {
 
         System.out.println(u.getService() + "?graph="+ u.getGraphID());
     }
-    private String readFile( String file ) throws IOException {
-        BufferedReader reader = new BufferedReader( new FileReader (file));
-        String         line = null;
-        StringBuilder  stringBuilder = new StringBuilder();
-        String         ls = System.getProperty("line.separator");
-
-        while( ( line = reader.readLine() ) != null ) {
-            stringBuilder.append( line );
-            stringBuilder.append( ls );
-        }
-
-        return stringBuilder.toString();
-    }
 }
 
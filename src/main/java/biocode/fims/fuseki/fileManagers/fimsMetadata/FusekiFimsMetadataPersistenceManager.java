@@ -1,9 +1,12 @@
 package biocode.fims.fuseki.fileManagers.fimsMetadata;
 
 import biocode.fims.application.config.FimsProperties;
+import biocode.fims.digester.Attribute;
+import biocode.fims.digester.Mapping;
 import biocode.fims.entities.BcidTmp;
 import biocode.fims.fileManagers.fimsMetadata.AbstractFimsMetadataPersistenceManager;
 import biocode.fims.fileManagers.fimsMetadata.FimsMetadataPersistenceManager;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
 import biocode.fims.fuseki.Uploader;
 import biocode.fims.fuseki.query.FimsQueryBuilder;
 import biocode.fims.fuseki.triplify.Triplifier;
@@ -16,18 +19,48 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.google.common.collect.Lists;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
  * {@link FimsMetadataPersistenceManager} for Fuseki tdb
  */
 public class FusekiFimsMetadataPersistenceManager extends AbstractFimsMetadataPersistenceManager implements FimsMetadataPersistenceManager {
+    private static final String SCHEMA_GRAPH_PREFIX = "urn:fims:schema:project:";
+    // total rows held by the dataset cache, and the largest dataset which is cached
+    private static final int MAX_CACHED_ROWS = 50000;
+    private static final int MAX_CACHED_DATASET_ROWS = 10000;
+    private static final int FETCH_PAGE_SIZE = 5000;
+
+    // dataset graphs are never modified once uploaded, so a fetched dataset can be reused for as long as it is cached.
+    // keyed by projectId/expeditionCode/graph/mapping checksum, least recently used evicted first once the cached
+    // datasets hold more than MAX_CACHED_ROWS rows
+    private static final LinkedHashMap<String, ArrayNode> datasetCache = new LinkedHashMap<>(16, 0.75f, true);
+    private static int cachedRows = 0;
+
+    private final FimsProperties props;
+
     private final ExpeditionService expeditionService;
     private final BcidService bcidService;
     private String graph;
     private String webAddress;
     private ArrayNode dataset;
+    private boolean pipelinedUpload = false;
+    private boolean sharedSchemaGraph = false;
+    private boolean inMemoryTriplify = false;
+    private UploadListener uploadListener = phase -> {
+    };
+
+    /**
+     * Notified as an upload moves through its phases
+     */
+    public interface UploadListener {
+        void onPhase(UploadJob.Phase phase);
+    }
 
     @Autowired
     public FusekiFimsMetadataPersistenceManager(ExpeditionService expeditionService, BcidService bcidService,
@@ -35,6 +68,52 @@ public class FusekiFimsMetadataPersistenceManager extends AbstractFimsMetadataPe
         super(props);
         this.expeditionService = expeditionService;
         this.bcidService = bcidService;
+        this.props = props;
+    }
+
+    /**
+     * Stream the triples into Fuseki as they are produced by the triplifier, instead of writing a triple file
+     * and uploading it once triplification has finished
+     *
+     * @param pipelinedUpload
+     */
+    public void setPipelinedUpload(boolean pipelinedUpload) {
+        this.pipelinedUpload = pipelinedUpload;
+    }
+
+    /**
+     * Store the schema triples (property declarations and isDefinedBy equivalences) once in the project's schema
+     * graph, instead of repeating them in every dataset graph
+     *
+     * @param sharedSchemaGraph
+     */
+    public void setSharedSchemaGraph(boolean sharedSchemaGraph) {
+        this.sharedSchemaGraph = sharedSchemaGraph;
+    }
+
+    /**
+     * Triplify the dataset directly from memory, instead of from the validation sqlite file through D2RQ, when the
+     * Mapping allows it. The triples are streamed into Fuseki as they are produced
+     *
+     * @param inMemoryTriplify
+     */
+    public void setInMemoryTriplify(boolean inMemoryTriplify) {
+        this.inMemoryTriplify = inMemoryTriplify;
+    }
+
+    /**
+     * @param uploadListener notified when the upload starts triplifying, and uploading the triples
+     */
+    public void setUploadListener(UploadListener uploadListener) {
+        this.uploadListener = uploadListener;
+    }
+
+    /**
+     * @param projectId
+     * @return the graph holding the schema triples of the project's datasets, if they are stored separately
+     */
+    public static String getSchemaGraph(int projectId) {
+        return SCHEMA_GRAPH_PREFIX + projectId;
     }
 
     @Override
@@ -44,6 +123,7 @@ public class FusekiFimsMetadataPersistenceManager extends AbstractFimsMetadataPe
 
         // run the triplifier
         Triplifier triplifier = new Triplifier(outputPrefix, processController.getOutputFolder(), processController);
+        triplifier.setSeparateSchema(sharedSchemaGraph);
 
         expeditionService.setEntityIdentifiers(
                 processController.getMapping(),
@@ -51,19 +131,60 @@ public class FusekiFimsMetadataPersistenceManager extends AbstractFimsMetadataPe
                 processController.getProjectId()
         );
 
-        // the D2Rq mapping file must match the
-        triplifier.run(processController.getValidation().getSqliteFile(), Lists.newArrayList(dataset.get(0).fieldNames()));
+        File sqliteFile = processController.getValidation().getSqliteFile();
+        List<String> colNames = Lists.newArrayList(dataset.get(0).fieldNames());
+        Uploader uploader;
+
+        if (inMemoryTriplify && triplifier.canStream(dataset)) {
+            uploadListener.onPhase(UploadJob.Phase.UPLOADING);
+            uploader = new Uploader(processController.getMapping().getMetadata().getTarget());
+
+            uploader.executeStreaming(writer -> triplifier.stream(dataset, writer));
+        } else if (pipelinedUpload) {
+            // triples are uploaded as they are triplified
+            uploadListener.onPhase(UploadJob.Phase.UPLOADING);
+            uploader = new Uploader(processController.getMapping().getMetadata().getTarget());
 
-        // upload the dataset
-        Uploader uploader = new Uploader(processController.getMapping().getMetadata().getTarget(),
-                new File(triplifier.getTripleOutputFile()));
+            uploader.executeStreaming(writer -> triplifier.stream(sqliteFile, colNames, writer));
+        } else {
+            uploadListener.onPhase(UploadJob.Phase.TRIPLIFYING);
+            // the D2Rq mapping file must match the
+            triplifier.run(sqliteFile, colNames);
 
-        uploader.execute();
+            uploadListener.onPhase(UploadJob.Phase.UPLOADING);
+
+            // upload the dataset
+            uploader = new Uploader(processController.getMapping().getMetadata().getTarget(),
+                    new File(triplifier.getTripleOutputFile()));
+
+            uploader.execute();
+        }
+
+        if (sharedSchemaGraph) {
+            Uploader schemaUploader = new Uploader(processController.getMapping().getMetadata().getTarget(), null,
+                    getSchemaGraph(processController.getProjectId()));
+            schemaUploader.executeIfAbsent(triplifier.getSchemaModel());
+        }
 
         graph = uploader.getGraphID();
         webAddress = uploader.getEndpoint();
     }
 
+    /**
+     * @param projectId
+     * @param expeditionCode
+     * @return the graph of the most recently uploaded dataset of the expedition, or null if there is none
+     */
+    public String getLatestGraph(int projectId, String expeditionCode) {
+        BcidTmp latest = null;
+        for (BcidTmp bcid : bcidService.getDatasets(projectId, expeditionCode)) {
+            if (bcid.getGraph() != null && (latest == null || bcid.getBcidId() > latest.getBcidId())) {
+                latest = bcid;
+            }
+        }
+        return latest == null ? null : latest.getGraph();
+    }
+
     @Override
     public boolean validate(ProcessController processController) {
         return true;
@@ -88,21 +209,87 @@ public class FusekiFimsMetadataPersistenceManager extends AbstractFimsMetadataPe
         return dataset;
     }
 
+    /**
+     * Fetch the expedition's latest dataset, querying only its graph a page at a time
+     *
+     * @param processController
+     * @return a copy of the dataset, which the caller is free to modify
+     */
     private ArrayNode fetchLatestDataset(ProcessController processController) {
-//        List<BcidTmp> datasetBcids = bcidService.getFimsMetadataDatasets(processController.getProjectId(), processController.getExpeditionCode());
+        int projectId = processController.getProjectId();
+        String expeditionCode = processController.getExpeditionCode();
+        String latestGraph = getLatestGraph(projectId, expeditionCode);
+
+        if (latestGraph == null) {
+            return new SpringObjectMapper().createArrayNode();
+        }
+
+        // the rows depend on the mapping's columns as well as the graph
+        String key = projectId + "/" + expeditionCode + "/" + latestGraph + "/" +
+                getMappingChecksum(processController.getMapping());
+        ArrayNode fimsMetadata = getCachedDataset(key);
 
-        ArrayNode fimsMetadata = new SpringObjectMapper().createArrayNode();
+        if (fimsMetadata == null) {
+            FimsQueryBuilder q = new FimsQueryBuilder(
+                    processController.getMapping(),
+                    new String[]{latestGraph},
+                    processController.getOutputFolder(),
+                    props.naan());
 
-//        if (!datasetBcids.isEmpty()) {
-//            FimsQueryBuilder q = new FimsQueryBuilder(
-//                    processController.getMapping(),
-//                    new String[]{datasetBcids.get(0).getGraph()},
-//                    processController.getOutputFolder());
+            ArrayNode fetched = new SpringObjectMapper().createArrayNode();
+            q.forEachPage(FETCH_PAGE_SIZE, fetched::addAll);
 
-//            fimsMetadata.addAll(q.getJSON());
-//        }
+            cacheDataset(key, fetched);
+            fimsMetadata = fetched;
+        }
+
+        return fimsMetadata.deepCopy();
+    }
+
+    private static synchronized ArrayNode getCachedDataset(String key) {
+        return datasetCache.get(key);
+    }
 
-        return fimsMetadata;
+    /**
+     * Cache the dataset, unless it has more than MAX_CACHED_DATASET_ROWS rows, evicting the least recently used
+     * datasets until the cache holds at most MAX_CACHED_ROWS rows
+     */
+    private static synchronized void cacheDataset(String key, ArrayNode dataset) {
+        if (dataset.size() > MAX_CACHED_DATASET_ROWS) {
+            return;
+        }
+
+        ArrayNode previous = datasetCache.put(key, dataset);
+        if (previous != null) {
+            cachedRows -= previous.size();
+        }
+        cachedRows += dataset.size();
+
+        Iterator<ArrayNode> it = datasetCache.values().iterator();
+        while (cachedRows > MAX_CACHED_ROWS && it.hasNext()) {
+            cachedRows -= it.next().size();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return a checksum of the sheet name and the attributes' columns, uris and datatypes, which determine the rows
+     * built from a dataset graph
+     */
+    private static String getMappingChecksum(Mapping mapping) {
+        StringBuilder sb = new StringBuilder(mapping.getDefaultSheetName());
+        for (Attribute attribute : mapping.getDefaultSheetAttributes()) {
+            sb.append('\n').append(attribute.getColumn())
+                    .append('\t').append(attribute.getUri())
+                    .append('\t').append(attribute.getDatatype());
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return DatatypeConverter.printHexBinary(digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new FimsRuntimeException(500, e);
+        }
     }
 
     @Override
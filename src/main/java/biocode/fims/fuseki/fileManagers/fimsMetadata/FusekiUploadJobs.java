@@ -0,0 +1,135 @@
+package biocode.fims.fuseki.fileManagers.fimsMetadata;
+
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+import biocode.fims.run.ProcessController;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs {@link FusekiFimsMetadataPersistenceManager#upload} asynchronously, so the request thread can return a job id
+ * immediately instead of waiting while the dataset is triplified and uploaded to Fuseki.
+ * <p>
+ * Getting the triples into Fuseki is only part of an upload. Everything the caller would otherwise do after
+ * persistenceManager.upload returns, such as creating the dataset's bcid with the graph and webAddress, indexing the
+ * dataset and closing the file managers, must be done in the {@link UploadCompletion} passed to submit. It runs on
+ * the job's thread once the triples are uploaded, and the job is only COMPLETED once it returns, or FAILED if it
+ * throws.
+ * <p>
+ * Uploads run on a bounded pool of threads with a bounded queue. Submitting when the queue is full fails with a 503
+ * instead of queueing uploads without limit. The status of the last maxFinishedJobs finished jobs is kept for polling.
+ */
+public class FusekiUploadJobs {
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_QUEUED = 50;
+    private static final int MAX_FINISHED_JOBS = 1000;
+
+    private static Logger logger = LoggerFactory.getLogger(FusekiUploadJobs.class);
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, UploadJob> activeJobs = new ConcurrentHashMap<>();
+    // least recently finished evicted first
+    private final Map<String, UploadJob> finishedJobs = Collections.synchronizedMap(
+            new LinkedHashMap<String, UploadJob>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, UploadJob> eldest) {
+                    return size() > MAX_FINISHED_JOBS;
+                }
+            });
+
+    /**
+     * The rest of an upload, once the dataset's triples are in Fuseki
+     */
+    public interface UploadCompletion {
+        /**
+         * @param persistenceManager the persistenceManager which uploaded the dataset, with its graph and webAddress
+         */
+        void complete(FusekiFimsMetadataPersistenceManager persistenceManager);
+    }
+
+    public FusekiUploadJobs() {
+        this(DEFAULT_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param threads   maximum number of uploads running at the same time
+     * @param maxQueued maximum number of uploads waiting for a thread
+     */
+    public FusekiUploadJobs(int threads, int maxQueued) {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueued), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Submit an upload of the dataset
+     *
+     * @param persistenceManager used only for this upload, and not touched by the caller until the job is done
+     * @param processController
+     * @param dataset
+     * @param filename
+     * @param completion the rest of the upload, run once the triples are uploaded
+     * @return the job id
+     */
+    public String submit(FusekiFimsMetadataPersistenceManager persistenceManager, ProcessController processController,
+                         ArrayNode dataset, String filename, UploadCompletion completion) {
+        UploadJob job = new UploadJob(UUID.randomUUID().toString(), processController.getProjectId(),
+                processController.getExpeditionCode());
+        activeJobs.put(job.getId(), job);
+
+        try {
+            executor.execute(() -> run(job, persistenceManager, processController, dataset, filename, completion));
+        } catch (RejectedExecutionException e) {
+            activeJobs.remove(job.getId());
+            throw new FimsRuntimeException("Too many uploads in progress. Please try again later", 503);
+        }
+
+        return job.getId();
+    }
+
+    /**
+     * @param jobId
+     * @return the job, or null if there is no job with that id, or it finished long ago
+     */
+    public UploadJob getJob(String jobId) {
+        UploadJob job = activeJobs.get(jobId);
+        return job != null ? job : finishedJobs.get(jobId);
+    }
+
+    /**
+     * Stop accepting uploads and wait for the running and queued uploads to finish
+     *
+     * @param timeout
+     * @param unit
+     * @return true if all uploads finished within the timeout
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private void run(UploadJob job, FusekiFimsMetadataPersistenceManager persistenceManager,
+                     ProcessController processController, ArrayNode dataset, String filename,
+                     UploadCompletion completion) {
+        long start = System.currentTimeMillis();
+        try {
+            persistenceManager.setUploadListener(job::setPhase);
+            persistenceManager.upload(processController, dataset, filename);
+
+            job.setPhase(UploadJob.Phase.FINISHING);
+            completion.complete(persistenceManager);
+
+            job.complete(persistenceManager.getGraph(), persistenceManager.getWebAddress());
+            logger.info("upload {} of expedition {} completed in {} ms", job.getId(), job.getExpeditionCode(),
+                    System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            job.fail(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+            logger.error("upload " + job.getId() + " of expedition " + job.getExpeditionCode() + " failed", e);
+        } finally {
+            finishedJobs.put(job.getId(), job);
+            activeJobs.remove(job.getId());
+        }
+    }
+}
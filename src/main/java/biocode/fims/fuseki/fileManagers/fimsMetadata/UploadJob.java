@@ -0,0 +1,115 @@
+package biocode.fims.fuseki.fileManagers.fimsMetadata;
+
+/**
+ * Status of an asynchronous upload submitted to {@link FusekiUploadJobs}
+ */
+public class UploadJob {
+    public enum Phase {
+        QUEUED,
+        TRIPLIFYING,
+        UPLOADING,
+        // the triples are uploaded, and the UploadCompletion is running
+        FINISHING,
+        COMPLETED,
+        FAILED
+    }
+
+    private final String id;
+    private final int projectId;
+    private final String expeditionCode;
+    private final long submitted;
+    private volatile Phase phase = Phase.QUEUED;
+    private volatile long phaseStarted;
+    private volatile long finished;
+    private volatile String graph;
+    private volatile String webAddress;
+    private volatile String error;
+
+    UploadJob(String id, int projectId, String expeditionCode) {
+        this.id = id;
+        this.projectId = projectId;
+        this.expeditionCode = expeditionCode;
+        this.submitted = System.currentTimeMillis();
+        this.phaseStarted = submitted;
+    }
+
+    void setPhase(Phase phase) {
+        this.phase = phase;
+        this.phaseStarted = System.currentTimeMillis();
+    }
+
+    void complete(String graph, String webAddress) {
+        this.graph = graph;
+        this.webAddress = webAddress;
+        this.finished = System.currentTimeMillis();
+        setPhase(Phase.COMPLETED);
+    }
+
+    void fail(String error) {
+        this.error = error;
+        this.finished = System.currentTimeMillis();
+        setPhase(Phase.FAILED);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getProjectId() {
+        return projectId;
+    }
+
+    public String getExpeditionCode() {
+        return expeditionCode;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public boolean isDone() {
+        return phase == Phase.COMPLETED || phase == Phase.FAILED;
+    }
+
+    /**
+     * @return when the job was submitted, in epoch millis
+     */
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * @return when the current phase started, in epoch millis
+     */
+    public long getPhaseStarted() {
+        return phaseStarted;
+    }
+
+    /**
+     * @return when the job completed or failed, in epoch millis, or 0 if it hasn't finished
+     */
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the graph the dataset was uploaded to, once completed
+     */
+    public String getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return the webAddress of the uploaded dataset, once completed
+     */
+    public String getWebAddress() {
+        return webAddress;
+    }
+
+    /**
+     * @return the failure message, if the job failed
+     */
+    public String getError() {
+        return error;
+    }
+}
@@ -1,13 +1,28 @@
 package biocode.fims.fuseki;
 
-import com.hp.hpl.jena.ontology.OntModel;
-import com.hp.hpl.jena.ontology.OntModelSpec;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.*;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.RDFNode;
-
-import java.util.ArrayList;
-import java.util.Iterator;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.sparql.sse.SSE;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import com.hp.hpl.jena.util.FileManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Find expressed logical axioms between subjects and objects by querying restrictions that are expressed
@@ -17,17 +32,46 @@ import java.util.Iterator;
  * The SPARQL was built around statements from: https://www.w3.org/TR/owl-ref/#ValueRestriction
  * <p/>
  * This class will also provide a convenience methods for returning a single relation given any subject/object pair.
+ * <p/>
+ * The relations extracted from an ontology are saved to the java.io.tmpdir, keyed by a hash of the ontology file, and
+ * reused as long as the ontology file doesn't change.
  */
 public class findRelations {
+    private static final File CACHE_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "findRelations");
+    private static final String BLANK_NODE_PREFIX = "_:";
+    // relations already extracted in this jvm, keyed by ontology hash and runCardinality
+    private static final Map<String, List<relation>> extractedRelations = new ConcurrentHashMap<>();
+
+    private static Logger logger = LoggerFactory.getLogger(findRelations.class);
 
     private String owlFileURI;
     private String lang;
-    private ArrayList relations = new ArrayList<relation>();
+    private List<relation> relations;
+    // lower cased subject and object -> relations
+    private Map<String, List<relation>> relationIndex = new HashMap<>();
 
     public findRelations(String owlFileURI, String lang, Boolean runCardinality) {
         this.owlFileURI = owlFileURI;
         this.lang = lang;
-        simplifiedRelationsUsingSparql(runCardinality);
+
+        byte[] ontology = readOntology();
+        String key = hash(ontology) + (runCardinality ? "_cardinality" : "");
+
+        relations = extractedRelations.computeIfAbsent(key, k -> {
+            File cacheFile = new File(CACHE_DIRECTORY, k + ".tsv");
+            if (cacheFile.exists()) {
+                return readRelations(cacheFile);
+            }
+
+            List<relation> extracted = simplifiedRelationsUsingSparql(ontology, runCardinality);
+            writeRelations(cacheFile, extracted);
+            return extracted;
+        });
+
+        for (relation r : relations) {
+            relationIndex.computeIfAbsent(getIndexKey(r.subject.toString(), r.object.toString()), k -> new ArrayList<>())
+                    .add(r);
+        }
     }
 
     /**
@@ -35,10 +79,10 @@ public class findRelations {
      *
      * @return
      */
-    private ResultSet simplifiedRelationsUsingSparql(Boolean runCardinality) {
-        // Don't need inferencing... this has been pre-inferred.
-        OntModel base = ModelFactory.createOntologyModel(OntModelSpec.OWL_DL_MEM);
-        base.read(owlFileURI, lang);
+    private List<relation> simplifiedRelationsUsingSparql(byte[] ontology, Boolean runCardinality) {
+        // Don't need inferencing... this has been pre-inferred, so a plain model is enough
+        Model base = ModelFactory.createDefaultModel();
+        base.read(new ByteArrayInputStream(ontology), owlFileURI, lang);
 
         // Create a new query
         // see https://mailman.stanford.edu/pipermail/protege-owl/2012-February/018179.html
@@ -47,7 +91,7 @@ public class findRelations {
                         "PREFIX owl:<http://www.w3.org/2002/07/owl#>\n" +
                         "PREFIX xsd:<http://www.w3.org/2001/XMLSchema#>\n" +
                         "PREFIX rdfs:<http://www.w3.org/2000/01/rdf-schema#>\n" +
-                        "SELECT ?subject ?s_label ?property ?object ?o_label ?valueRestriction \n" +
+                        "SELECT ?subject ?s_label ?property ?object ?o_label ?valueRestriction ?cardinalityRestriction \n" +
                         //"SELECT  ?s_label  ?p_label ?o_label ?valueRestriction \n" +
                         //"SELECT ?pp \n" +
                         "WHERE { \n" +
@@ -85,9 +129,9 @@ public class findRelations {
         // Execute the query and obtain results
         QueryExecution qe = QueryExecutionFactory.create(query, base);
         ResultSet results = qe.execSelect();
+        List<relation> relations = new ArrayList<>();
 
-        System.out.println(queryString);
-        ResultSetFormatter.out(System.out, results, query);
+        logger.debug(queryString);
 
         while (results.hasNext()) {
             QuerySolution qs = results.next();
@@ -105,20 +149,132 @@ public class findRelations {
 
         // Important - free up resources used running the query
         qe.close();
-        return results;
+        base.close();
+        return relations;
+    }
+
+    private byte[] readOntology() {
+        try (InputStream in = FileManager.get().open(owlFileURI)) {
+            if (in == null) {
+                throw new FimsRuntimeException("ontology " + owlFileURI + " not found", 500);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
     }
 
+    private static String hash(byte[] ontology) {
+        try {
+            return DatatypeConverter.printHexBinary(MessageDigest.getInstance("SHA-1").digest(ontology));
+        } catch (NoSuchAlgorithmException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+
+    /**
+     * Read relations saved by {@link #writeRelations(File, List)}
+     */
+    static List<relation> readRelations(File cacheFile) {
+        Model model = ModelFactory.createDefaultModel();
+        List<relation> relations = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] nodes = line.split("\t", -1);
+                relations.add(new relation(
+                        parseNode(model, nodes[0]),
+                        parseNode(model, nodes[1]),
+                        parseNode(model, nodes[2]),
+                        parseNode(model, nodes[3]),
+                        parseNode(model, nodes[4])
+                ));
+            }
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+        return relations;
+    }
+
+    /**
+     * Save the relations as tab separated nodes, one relation per line. The file is written atomically, so a
+     * partially written file is never read
+     */
+    static void writeRelations(File cacheFile, List<relation> relations) {
+        cacheFile.getParentFile().mkdirs();
+        File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            for (relation r : relations) {
+                writer.write(formatNode(r.subject) + "\t" + formatNode(r.property) + "\t" + formatNode(r.object) +
+                        "\t" + formatNode(r.valueRestriction) + "\t" + formatNode(r.cardinalityRestriction) + "\n");
+            }
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), cacheFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+
+    /**
+     * Write the node in SPARQL syntax, without prefixes. The restrictions of an ontology often have anonymous class
+     * expressions as their object, and the labels Jena gives blank nodes aren't legal in SPARQL syntax, so blank
+     * nodes are written as _: followed by their label in hex, to be read back with the same label
+     */
+    private static String formatNode(RDFNode node) {
+        if (node == null) {
+            return "";
+        }
+        if (node.isAnon()) {
+            String label = node.asNode().getBlankNodeLabel();
+            return BLANK_NODE_PREFIX + DatatypeConverter.printHexBinary(label.getBytes(StandardCharsets.UTF_8));
+        }
+        return FmtUtils.stringForNode(node.asNode(), (PrefixMapping) null);
+    }
+
+    private static RDFNode parseNode(Model model, String node) {
+        if (node.isEmpty()) {
+            return null;
+        }
+        if (node.startsWith(BLANK_NODE_PREFIX)) {
+            byte[] label = DatatypeConverter.parseHexBinary(node.substring(BLANK_NODE_PREFIX.length()));
+            return model.asRDFNode(Node.createAnon(new AnonId(new String(label, StandardCharsets.UTF_8))));
+        }
+        return model.asRDFNode(SSE.parseNode(node));
+    }
+
+    private static String getIndexKey(String subject, String object) {
+        return subject.toLowerCase() + " " + object.toLowerCase();
+    }
+
+
+    /**
+     * @return all relations extracted from the ontology
+     */
+    List<relation> getRelations() {
+        return relations;
+    }
 
     /**
      * print list of relations
      */
     public void print() {
-        Iterator it = relations.iterator();
         // print header
         new relation().printRelationHeader();
         // iterate array and print each relation
-        while (it.hasNext()) {
-            relation r = (relation) it.next();
+        for (relation r : relations) {
             r.printRelation();
         }
     }
@@ -161,15 +317,23 @@ public class findRelations {
             System.out.println("relation not found");
     }
 
-    private relation getRelation(String subject, String object) {
-        Iterator it = relations.iterator();
+    /**
+     * @param subject
+     * @param object
+     * @return the first relation joining the subject to the object, ignoring case, or null if there is none
+     */
+    public relation getRelation(String subject, String object) {
+        List<relation> found = getRelations(subject, object);
+        return found.isEmpty() ? null : found.get(0);
+    }
 
-        // iterate array and print each relation
-        while (it.hasNext()) {
-            relation r = (relation) it.next();
-            if (r.subject.toString().equalsIgnoreCase(subject) && r.object.toString().equalsIgnoreCase(object)) return r;
-        }
-        return null;
+    /**
+     * @param subject
+     * @param object
+     * @return all relations joining the subject to the object, ignoring case
+     */
+    public List<relation> getRelations(String subject, String object) {
+        return relationIndex.getOrDefault(getIndexKey(subject, object), Collections.emptyList());
     }
 
     /**
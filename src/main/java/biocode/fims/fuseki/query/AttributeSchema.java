@@ -0,0 +1,119 @@
+package biocode.fims.fuseki.query;
+
+import biocode.fims.digester.Attribute;
+import biocode.fims.digester.DataType;
+import biocode.fims.digester.Mapping;
+import com.hp.hpl.jena.graph.Node;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup tables for the attributes of the default sheet, built once from the {@link Mapping} so that
+ * mapping a predicate to its column, datatype and label is a hash lookup instead of a scan of all attributes.
+ * Shared by the {@link FimsModel} and {@link QueryWriter} building a query result.
+ */
+public class AttributeSchema {
+    private final List<Attribute> attributes;
+
+    // keyed by the predicate Node of the attribute uri
+    private final Map<Node, Integer> columnIndexes = new HashMap<Node, Integer>();
+    private final Map<Node, DataType> datatypes = new HashMap<Node, DataType>();
+    private final Map<Node, String> labels = new HashMap<Node, String>();
+
+    // keyed by the column name
+    private final Map<String, Integer> columnPositions = new HashMap<String, Integer>();
+
+    public AttributeSchema(Mapping mapping) {
+        this(mapping.getDefaultSheetAttributes());
+    }
+
+    /**
+     * @param attributes ArrayList of attributes passed as argument is meant to come from digester.Mapping instance
+     */
+    public AttributeSchema(List<Attribute> attributes) {
+        this.attributes = attributes;
+
+        int count = 0;
+        for (Attribute attribute : attributes) {
+            // the first attribute with a given column name owns that column position
+            if (attribute.getColumn() != null && !columnPositions.containsKey(attribute.getColumn())) {
+                columnPositions.put(attribute.getColumn(), count);
+            }
+            count++;
+        }
+
+        for (Attribute attribute : attributes) {
+            if (attribute.getUri() == null) {
+                continue;
+            }
+            // when multiple attributes share a uri, the last one defined wins
+            Node predicate = Node.createURI(attribute.getUri());
+            labels.put(predicate, attribute.getColumn());
+            datatypes.put(predicate, attribute.getDatatype());
+            columnIndexes.put(predicate, columnPositions.get(attribute.getColumn()));
+        }
+    }
+
+    public List<Attribute> getAttributes() {
+        return attributes;
+    }
+
+    public int size() {
+        return attributes.size();
+    }
+
+    /**
+     * @param predicate
+     * @return true if the predicate is the uri of an attribute in the configuration file
+     */
+    public boolean contains(Node predicate) {
+        return labels.containsKey(predicate);
+    }
+
+    /**
+     * @param predicate
+     * @return the column index of the attribute with this uri, or null if there is no such attribute
+     */
+    public Integer getColumnIndex(Node predicate) {
+        return columnIndexes.get(predicate);
+    }
+
+    /**
+     * @param predicate
+     * @return the DataType of the attribute with this uri, or null if there is no such attribute
+     */
+    public DataType getDatatype(Node predicate) {
+        return datatypes.get(predicate);
+    }
+
+    /**
+     * @param predicate
+     * @return the column name of the attribute with this uri, or null if there is no such attribute
+     */
+    public String getLabel(Node predicate) {
+        return labels.get(predicate);
+    }
+
+    /**
+     * @param columnName
+     * @return the first attribute with this column name, ignoring case, or null if there is no such attribute
+     */
+    public Attribute findAttributeIgnoreCase(String columnName) {
+        for (Attribute attribute : attributes) {
+            if (columnName.equalsIgnoreCase(attribute.getColumn())) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param columnName
+     * @return the column index of the attribute with this column name, or null if there is no such attribute
+     */
+    public Integer getColumnPosition(String columnName) {
+        return columnPositions.get(columnName);
+    }
+}
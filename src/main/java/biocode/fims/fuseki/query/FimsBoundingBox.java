@@ -0,0 +1,24 @@
+package biocode.fims.fuseki.query;
+
+/**
+ * A bounding box restricting query results to resources whose decimalLatitude and decimalLongitude fall within it
+ */
+public class FimsBoundingBox {
+    public static final String LATITUDE_COLUMN = "decimalLatitude";
+    public static final String LONGITUDE_COLUMN = "decimalLongitude";
+
+    public double minLatitude;
+    public double minLongitude;
+    public double maxLatitude;
+    public double maxLongitude;
+
+    public FimsBoundingBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        if (minLatitude > maxLatitude || minLongitude > maxLongitude) {
+            throw new IllegalArgumentException("minimum latitude and longitude must not be greater than the maximum");
+        }
+        this.minLatitude = minLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLatitude = maxLatitude;
+        this.maxLongitude = maxLongitude;
+    }
+}
@@ -1,20 +1,26 @@
 package biocode.fims.fuseki.query;
 
-import biocode.fims.digester.Attribute;
+import biocode.fims.digester.DataType;
 import biocode.fims.digester.Mapping;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.rdf.model.*;
-import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
 
 /**
  * TODO: look at PPO-Fims PPOFimsModel class if we want to use this class. That was a refactoring of this class, removing recursion problems
  * TODO: and removing the QueryWriter due to performance issues
  * Model representing FIMS object.   The data structure we start with in FimsModel is a Jena/ARQ Model and
- * the structure we end up with is an Apache POI sheet, useful for building other types of return statements.
+ * the structure we end up with is a compact RowStore, useful for building other types of return statements.
  * This is an extremely useful way of working with data and converting to other structures, but it DOES place a
  * theoretical limit on the number of distinct records in a particular project.  Enabling much larger projects
  * by using indexes and some kind of document storage engine is on our list of things to make happen.
@@ -25,23 +31,33 @@ import java.util.Iterator;
  * change, or otherwise muck with URIs
  */
 public class FimsModel {
-    // A list of the Attribute URIs contained in the configuration file
-    ArrayList<String> configurationFileAttributeURIs;
+    // Lookup tables for the Attributes contained in the configuration file, shared with the QueryWriter
+    AttributeSchema schema;
 
     Model model;
 
     String type = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
     String depends_on = "http://biscicol.org/terms/index.html#depends_on";
+    private final Node typeNode = Node.createURI(type);
+    private final Node dependsOnNode = Node.createURI(depends_on);
     int depth = 1;
     int countRows = 0;
 
+    // maximum number of relation hops to follow from a root resource
+    int maxDepth = Integer.MAX_VALUE;
+    // traversal counts, reported after readRows
+    int countTraversed = 0;
+    int countRevisitsSkipped = 0;
+    int countDepthLimited = 0;
+
     QueryWriter queryWriter;
-    Row row;    // class level variable we use to assign values to using various methods here
 
     StringBuilder stringBuilder = new StringBuilder();
 
     boolean getOnlySpecifiedProperties;
 
+    private static Logger logger = LoggerFactory.getLogger(FimsModel.class);
+
     /**
      * @param model
      * @param queryWriter
@@ -53,13 +69,35 @@ public class FimsModel {
         this.queryWriter = queryWriter;
         this.getOnlySpecifiedProperties = getOnlySpecifiedProperties;
 
-        Iterator attributesIt = mapping.getDefaultSheetAttributes().iterator();
-        configurationFileAttributeURIs = new ArrayList<String>();
-        while (attributesIt.hasNext()) {
-            Attribute a = (Attribute) attributesIt.next();
-            configurationFileAttributeURIs.add(a.getUri());
+        if (queryWriter.getSchema() != null) {
+            schema = queryWriter.getSchema();
+        } else {
+            schema = new AttributeSchema(mapping);
         }
+    }
+
+    /**
+     * Set the maximum number of relation hops followed from each root resource when building a row
+     *
+     * @param maxDepth
+     */
+    void setMaxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be at least 1");
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    public int getCountTraversed() {
+        return countTraversed;
+    }
 
+    public int getCountRevisitsSkipped() {
+        return countRevisitsSkipped;
+    }
+
+    public int getCountDepthLimited() {
+        return countDepthLimited;
     }
 
     /**
@@ -79,6 +117,16 @@ public class FimsModel {
      * @return
      */
     void readRows(String resource) {
+        readRows(resource, null);
+    }
+
+    /**
+     * Iterate through statements with "resource" as object, only starting rows at the given roots
+     *
+     * @param resource
+     * @param roots the subjects to start rows at, or null to start a row at every subject
+     */
+    void readRows(String resource, Set<Resource> roots) {
         RDFNode n = model.createResource(model.expandPrefix(resource));
         SimpleSelector selector = new SimpleSelector(null, null, n);
 
@@ -89,41 +137,76 @@ public class FimsModel {
         while (i.hasNext()) {
             // Statement representing a particular resource, typically with multiple properties attached to it
             Statement s = i.next();
+            if (roots != null && !roots.contains(s.getSubject())) {
+                continue;
+            }
 
-            // Create a row object here, so when we related objects, properties below we can write it out
-            row = queryWriter.createRow(countRows);
+            // Start a row here, so when we related objects, properties below we can write it out
+            queryWriter.startRow();
 
-            // List all properties available for this statement and if no values found, remove it.
-            if (!createRowFromStatemenetProperties(s.getSubject())) {
-                queryWriter.removeRow(countRows);
-            } else {
+            // List all properties available for this statement and if no values found, discard it.
+            if (createRowFromStatemenetProperties(s.getSubject())) {
+                // Loop each subject resource, which follows each node to any objects expressing graph type relations
+                // TODO: look at relations and directed graph relations
+                loopObjects(s.getSubject());
+
+                queryWriter.commitRow();
                 countRows++;
+            } else {
+                queryWriter.discardRow();
             }
 
-            // Loop each subject resource, which follows each node to any objects expressing graph type relations
-            // TODO: look at relations and directed graph relations
-            loopObjects(getRelations(s.getSubject()));
-
-
             // Set depth back to 1
             depth = 1;
         }
         i.close();
 
+        logger.debug("read " + countRows + " rows, traversed " + countTraversed + " related resources, skipped " +
+                countRevisitsSkipped + " revisits and " + countDepthLimited + " resources beyond maxDepth " + maxDepth);
 
     }
 
     /**
-     * Loop each object
+     * Loop each object related to the root resource, depth first, writing their properties to the current row.
+     * An explicit stack of iterators is used instead of recursion, and each resource is only visited once per
+     * root, so cycles in the graph terminate and shared child entities are not re-read.
      *
-     * @param stmtIterator
+     * @param root
      */
-    private void loopObjects(StmtIterator stmtIterator) {
-        depth++;
-        while (stmtIterator.hasNext()) {
-            Statement statement = stmtIterator.nextStatement();
-            createRowFromStatemenetProperties(statement.getSubject());
-            loopObjects(getRelations(statement.getSubject()));
+    private void loopObjects(Resource root) {
+        Set<Resource> visited = new HashSet<Resource>();
+        visited.add(root);
+
+        Deque<StmtIterator> stack = new ArrayDeque<StmtIterator>();
+        stack.push(getRelations(root));
+
+        while (!stack.isEmpty()) {
+            StmtIterator stmtIterator = stack.peek();
+            if (!stmtIterator.hasNext()) {
+                stmtIterator.close();
+                stack.pop();
+                continue;
+            }
+
+            Resource related = stmtIterator.nextStatement().getSubject();
+            if (!visited.add(related)) {
+                countRevisitsSkipped++;
+                continue;
+            }
+
+            depth = stack.size() + 1;
+            createRowFromStatemenetProperties(related);
+            countTraversed++;
+
+            if (stack.size() < maxDepth) {
+                stack.push(getRelations(related));
+            } else {
+                StmtIterator limited = getRelations(related);
+                if (limited.hasNext()) {
+                    countDepthLimited++;
+                }
+                limited.close();
+            }
         }
     }
 
@@ -170,17 +253,16 @@ public class FimsModel {
             // System.out.println(s.getSubject() + " "  + s.getPredicate().toString() + " " + s.getObject());
 
             // Print just the predicates we care about
-            if (!s.getPredicate().equals(getProperty(type)) && !s.getPredicate().equals(getProperty(depends_on))) {
+            Node predicate = s.getPredicate().asNode();
+            if (!predicate.equals(typeNode) && !predicate.equals(dependsOnNode)) {
                 // Don't want local name to be null
                 if (s.getPredicate().getLocalName() != null &&
                         !s.getPredicate().getLocalName().equals("null")
                         ) {
 
-                    String predicate = s.getPredicate().toString();
-
                     if (!getOnlySpecifiedProperties ||
-                            configurationFileAttributeURIs.contains(predicate)) {
-                        queryWriter.createCell(row, s.getPredicate().toString(), s.getObject().toString());
+                            schema.contains(predicate)) {
+                        queryWriter.createCell(predicate, s.getObject().toString());
                         rowWithValues = true;
                     }
                 }
@@ -191,7 +273,7 @@ public class FimsModel {
 
         // Write out the BCID String
         if (rowWithValues) {
-            queryWriter.createCell(row, "bcid", BCIDString);
+            queryWriter.createCell("bcid", BCIDString);
         }
 
         stmtIterator.close();
@@ -205,8 +287,7 @@ public class FimsModel {
      * @return
      */
     private StmtIterator getRelations(Resource subject) {
-        RDFNode node = model.createResource(model.expandPrefix(subject.asNode().toString()));
-        SimpleSelector selector = new SimpleSelector(null, null, node);
+        SimpleSelector selector = new SimpleSelector(null, null, subject);
 
         return model.listStatements(selector);
 
@@ -223,10 +304,10 @@ public class FimsModel {
     }
 
     /**
-     * Return output as an Excel file
+     * Append the rows to an existing sheet, see {@link QueryWriter#appendRows}
      */
-    String writeExcel(File file) {
-        return queryWriter.writeExcel(file);
+    void appendRows(Sheet sheet, int firstRow, Map<String, Integer> sheetColumns, Map<DataType, CellStyle> styles) {
+        queryWriter.appendRows(sheet, firstRow, sheetColumns, styles);
     }
 
     /**
@@ -236,9 +317,20 @@ public class FimsModel {
         return queryWriter.writeHTML(file);
     }
 
+    /**
+     * Return the first limit rows of output as an HTML table
+     */
+    String writeHTML(File file, int limit) {
+        return queryWriter.writeHTML(file, limit);
+    }
+
+
+    void writeKMLPlacemarks(Writer writer) throws IOException {
+        queryWriter.writeKMLPlacemarks(writer);
+    }
 
-    String writeKML(File file) {
-        return queryWriter.writeKML(file);
+    void writeGeoJSONFeatures(JsonGenerator generator) throws IOException {
+        queryWriter.writeGeoJSONFeatures(generator);
     }
 
     public void close() {
@@ -253,4 +345,8 @@ public class FimsModel {
     String writeCSV(File file) {
         return queryWriter.writeCSV(file, true);
     }
+
+    int getRowCount() {
+        return queryWriter.getRowCount();
+    }
 }
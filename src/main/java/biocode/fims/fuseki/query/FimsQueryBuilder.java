@@ -1,20 +1,39 @@
 package biocode.fims.fuseki.query;
 
+import biocode.fims.digester.Attribute;
+import biocode.fims.digester.DataType;
 import biocode.fims.digester.Mapping;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+import biocode.fims.fuseki.FusekiClient;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.hp.hpl.jena.query.*;
 import com.hp.hpl.jena.rdf.model.*;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import biocode.fims.run.TemplateProcessor;
 import biocode.fims.settings.PathManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Class for building queries against FIMS Database
@@ -31,11 +50,29 @@ import java.util.Iterator;
  */
 public class FimsQueryBuilder {
     private final static Logger logger = LoggerFactory.getLogger(FimsQueryBuilder.class);
+    // maximum number of resources fetched for an html preview
+    public final static int HTML_PREVIEW_LIMIT = 10000;
+    // number of resources fetched in each query when exporting a page at a time
+    private final static int EXPORT_PAGE_SIZE = 5000;
+    // number of rows held in memory while streaming an excel file, older rows are flushed to disk
+    private final static int EXCEL_ROW_ACCESS_WINDOW = 100;
+    // the data sheet of the excel template
+    private final static String EXCEL_SHEET_NAME = "Samples";
     String graphArray[];
     Mapping mapping;
     String sparqlServer;
     private final int naan;
     String outputDirectory;// = System.getProperty("user.dir") + File.separator + "tripleOutput";
+    // maximum number of relation hops the FimsModel follows from each root resource
+    private int maxRelationDepth = Integer.MAX_VALUE;
+    // column and datatype lookups for the mapping, built on first use
+    private AttributeSchema schema;
+    // optional bounding box, applied by the sparql server
+    private FimsBoundingBox boundingBox;
+    // marks the root resources of a constructed model, see constructRoots
+    static final String ROOT_MARKER = "urn:fims:queryRoot";
+    // above this depth, related resources are fetched with an unbounded property path instead of a UNION per hop
+    private static final int MAX_UNROLLED_RELATION_DEPTH = 5;
 
     // ArrayList of filter conditions
     private ArrayList<FimsFilterCondition> filterArrayList = new ArrayList<FimsFilterCondition>();
@@ -51,6 +88,24 @@ public class FimsQueryBuilder {
         this.naan = naan;
     }
 
+    /**
+     * Limit the number of relation hops followed from each root resource when building rows
+     *
+     * @param maxRelationDepth
+     */
+    public void setMaxRelationDepth(int maxRelationDepth) {
+        this.maxRelationDepth = maxRelationDepth;
+    }
+
+    /**
+     * Only return resources within this bounding box. The bounding box is pushed into the sparql query
+     *
+     * @param boundingBox
+     */
+    public void setBoundingBox(FimsBoundingBox boundingBox) {
+        this.boundingBox = boundingBox;
+    }
+
     /**
      * Add a single Filter condition
      *
@@ -109,10 +164,251 @@ public class FimsQueryBuilder {
                 "}";
 
         logger.debug(queryString);
-        QueryExecution qexec = QueryExecutionFactory.sparqlService(sparqlServer, queryString);
-        Model model = qexec.execConstruct();
-        qexec.close();
-        return model;
+        return FusekiClient.getInstance().construct(sparqlServer, queryString);
+    }
+
+    /**
+     * Build the model by using the CONSTRUCT statement, fetching only the triples of the first limit resources, in uri
+     * order, that match the filter conditions and bounding box, along with the triples of their related resources.
+     * The filter conditions, bounding box and limit are applied by the sparql server, so there is no need to call
+     * getFilteredModel on the result
+     * <p>
+     * When limited, related resources are only fetched up to MAX_UNROLLED_RELATION_DEPTH hops, so the time the query
+     * takes depends on the limit and not on the size of the graphs
+     *
+     * @param limit the maximum number of resources to fetch. 0 fetches all resources
+     * @return
+     */
+    public Model getModel(int limit) {
+        String rootSelect = "SELECT DISTINCT ?s WHERE {\n" +
+                "         ?s a <http://www.w3.org/2000/01/rdf-schema#Resource> . \n" +
+                buildFilterStatements() +
+                buildBoundingBoxStatements() +
+                "      } ORDER BY STR(?s)" + (limit > 0 ? " LIMIT " + limit : "");
+
+        if (limit > 0) {
+            return constructRoots(rootSelect, Math.min(maxRelationDepth, MAX_UNROLLED_RELATION_DEPTH));
+        }
+        return constructRoots(rootSelect, maxRelationDepth);
+    }
+
+    /**
+     * CONSTRUCT the triples of the root resources selected by rootSelect, and of the resources related to them within
+     * relationDepth hops, which the FimsModel reads into each root's row. Only the resources typed rdfs:Resource
+     * are fetched, as getModel() does. Each root is marked with ROOT_MARKER, so only the roots become rows, and not
+     * the related resources which happen to be roots themselves.
+     *
+     * @param rootSelect    a SELECT of the root resources as ?s
+     * @param relationDepth the maximum number of hops from a related resource to its root
+     * @return
+     */
+    private Model constructRoots(String rootSelect, int relationDepth) {
+        String queryString = "CONSTRUCT {?s ?p ?o . ?c ?cp ?co . ?s <" + ROOT_MARKER + "> \"root\"} \n" +
+                buildFromStatement() +
+                "WHERE {\n" +
+                "   {\n" +
+                "      " + rootSelect + "\n" +
+                "   }\n" +
+                "   { ?s ?p ?o }\n" +
+                buildRelatedStatements(relationDepth) +
+                "}";
+
+        logger.debug(queryString);
+        return FusekiClient.getInstance().construct(sparqlServer, queryString);
+    }
+
+    /**
+     * @return a UNION for each number of hops from a related resource ?c to the root ?s, or a property path when the
+     * depth is unbounded
+     */
+    private String buildRelatedStatements(int relationDepth) {
+        String related = "?c a <http://www.w3.org/2000/01/rdf-schema#Resource> . ?c ?cp ?co }\n";
+        if (relationDepth > MAX_UNROLLED_RELATION_DEPTH) {
+            return "   UNION { ?c (!<" + ROOT_MARKER + ">)+ ?s . " + related;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int hops = 1; hops <= relationDepth; hops++) {
+            sb.append("   UNION { ");
+            String object = "?s";
+            for (int hop = 1; hop < hops; hop++) {
+                sb.append("?x").append(hop).append(" ?r").append(hop).append(" ").append(object).append(" . ");
+                object = "?x" + hop;
+            }
+            sb.append("?c ?r").append(hops).append(" ").append(object).append(" . ").append(related);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Count the resources matching the filter conditions and bounding box, without fetching them
+     *
+     * @return
+     */
+    public long countResources() {
+        String queryString = "SELECT (COUNT(DISTINCT ?s) AS ?count) \n" +
+                buildFromStatement() +
+                "WHERE {\n" +
+                "   ?s a <http://www.w3.org/2000/01/rdf-schema#Resource> . \n" +
+                buildFilterStatements() +
+                buildBoundingBoxStatements() +
+                "}";
+
+        logger.debug(queryString);
+        ResultSet results = FusekiClient.getInstance().select(sparqlServer, queryString);
+        return results.hasNext() ? results.next().getLiteral("count").getLong() : 0;
+    }
+
+    /**
+     * Build the model of the next page of resources identified by a uri, ordered by uri, along with their related
+     * resources as getModel(int) does. Pages are selected by the last uri of the previous page rather than an OFFSET,
+     * so the server doesn't re-read all of the preceding resources for each page. Blank node resources are left out,
+     * forEachPage fetches them after the last page of uris.
+     *
+     * @param afterSubject the last resource uri of the previous page, or null for the first page
+     * @param pageSize     the maximum number of resources in the page
+     * @return
+     */
+    public Model getModelPage(String afterSubject, int pageSize) {
+        String afterFilter = "";
+        if (afterSubject != null) {
+            afterFilter = " && STR(?s) > \"" + afterSubject.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+
+        String rootSelect = "SELECT DISTINCT ?s WHERE {\n" +
+                "         ?s a <http://www.w3.org/2000/01/rdf-schema#Resource> . \n" +
+                buildFilterStatements() +
+                buildBoundingBoxStatements() +
+                "\tFILTER (isIRI(?s)" + afterFilter + ") .\n" +
+                "      } ORDER BY STR(?s) LIMIT " + pageSize;
+
+        return constructRoots(rootSelect, maxRelationDepth);
+    }
+
+    /**
+     * Build the model of a page of blank node resources, along with their related resources. A blank node can't be
+     * referred to by a later query, so these pages are selected with an OFFSET. This relies on the server ordering
+     * blank nodes the same way in every query, which Fuseki does by their stored label as long as the graphs aren't
+     * modified.
+     *
+     * @param offset   the number of blank node resources in the previous pages
+     * @param pageSize the maximum number of resources in the page
+     * @return
+     */
+    private Model getBlankNodeModelPage(long offset, int pageSize) {
+        String rootSelect = "SELECT DISTINCT ?s WHERE {\n" +
+                "         ?s a <http://www.w3.org/2000/01/rdf-schema#Resource> . \n" +
+                buildFilterStatements() +
+                buildBoundingBoxStatements() +
+                "\tFILTER isBlank(?s) .\n" +
+                "      } ORDER BY ?s OFFSET " + offset + " LIMIT " + pageSize;
+
+        return constructRoots(rootSelect, maxRelationDepth);
+    }
+
+    /**
+     * Handles a page of query results
+     */
+    public interface PageHandler {
+        void handle(ArrayNode page);
+    }
+
+    /**
+     * Run the query one page of pageSize resources at a time, passing the json rows of each page to the handler
+     * before fetching the next, so only a single page is held in memory
+     *
+     * @param pageSize
+     * @param handler
+     * @return the total number of resources
+     */
+    public int forEachPage(int pageSize, PageHandler handler) {
+        return forEachPageModel(pageSize, fimsModel -> handler.handle(fimsModel.getJSON()));
+    }
+
+    /**
+     * Handles the FimsModel of a page of query results
+     */
+    private interface ModelPageHandler {
+        void handle(FimsModel page) throws IOException;
+    }
+
+    /**
+     * Run the query one page of pageSize resources at a time, passing the FimsModel of each page to the handler
+     * before fetching the next. The resources identified by a uri are paged first, then the blank node resources.
+     *
+     * @param pageSize
+     * @param handler
+     * @return the total number of rows
+     */
+    private int forEachPageModel(int pageSize, ModelPageHandler handler) {
+        int total = 0;
+
+        String afterSubject = null;
+        while (true) {
+            Model model = getModelPage(afterSubject, pageSize);
+            List<Resource> roots = listRoots(model);
+
+            // start the next page after the last root of this one
+            for (Resource root : roots) {
+                if (afterSubject == null || root.getURI().compareTo(afterSubject) > 0) {
+                    afterSubject = root.getURI();
+                }
+            }
+
+            total += handlePage(model, roots.size(), handler);
+            // a short page is the last one
+            if (roots.size() < pageSize) {
+                break;
+            }
+        }
+
+        long offset = 0;
+        while (true) {
+            Model model = getBlankNodeModelPage(offset, pageSize);
+            int roots = listRoots(model).size();
+
+            total += handlePage(model, roots, handler);
+            offset += roots;
+            if (roots < pageSize) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the root resources of a model built by constructRoots. The related resources in the model aren't
+     * included, they are fetched again with their own page
+     */
+    private static List<Resource> listRoots(Model model) {
+        ResIterator it = model.listSubjectsWithProperty(model.createProperty(ROOT_MARKER));
+        try {
+            return it.toList();
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Pass the FimsModel of the page to the handler, unless the page has no root resources
+     *
+     * @return the number of rows in the page
+     */
+    private int handlePage(Model model, int roots, ModelPageHandler handler) {
+        if (roots == 0) {
+            model.close();
+            return 0;
+        }
+
+        FimsModel fimsModel = getFIMSModel(model, true);
+        try {
+            handler.handle(fimsModel);
+            return fimsModel.getRowCount();
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        } finally {
+            fimsModel.close();
+        }
     }
 
     /**
@@ -145,6 +441,32 @@ public class FimsQueryBuilder {
         return sb.toString();
     }
 
+    /**
+     * Restrict ?s to resources whose latitude and longitude fall within the bounding box, if one was set
+     *
+     * @return
+     */
+    private String buildBoundingBoxStatements() {
+        if (boundingBox == null) {
+            return "";
+        }
+
+        Attribute latitude = getSchema().findAttributeIgnoreCase(FimsBoundingBox.LATITUDE_COLUMN);
+        Attribute longitude = getSchema().findAttributeIgnoreCase(FimsBoundingBox.LONGITUDE_COLUMN);
+        if (latitude == null || longitude == null) {
+            throw new FimsRuntimeException("Can't apply a bounding box without " + FimsBoundingBox.LATITUDE_COLUMN +
+                    " and " + FimsBoundingBox.LONGITUDE_COLUMN + " attributes", 400);
+        }
+
+        String xsdDouble = "<http://www.w3.org/2001/XMLSchema#double>";
+        return "\t?s <" + latitude.getUri() + "> ?latitude .\n" +
+                "\t?s <" + longitude.getUri() + "> ?longitude .\n" +
+                "\tFILTER (" + xsdDouble + "(?latitude) >= " + boundingBox.minLatitude +
+                " && " + xsdDouble + "(?latitude) <= " + boundingBox.maxLatitude +
+                " && " + xsdDouble + "(?longitude) >= " + boundingBox.minLongitude +
+                " && " + xsdDouble + "(?longitude) <= " + boundingBox.maxLongitude + ") .\n";
+    }
+
     /**
      * build the FROM statements
      *
@@ -190,8 +512,19 @@ public class FimsQueryBuilder {
     }
 
     public String queryHtml() {
-        FimsModel fimsModel = run();
-        String filepath = fimsModel.writeHTML(PathManager.createUniqueFile("output.html", outputDirectory));
+        return queryHtml(HTML_PREVIEW_LIMIT);
+    }
+
+    /**
+     * Write an html table of the first limit resources. The limit is applied in the sparql query, so the time
+     * this takes depends on the limit, not the size of the project
+     *
+     * @param limit
+     * @return
+     */
+    public String queryHtml(int limit) {
+        FimsModel fimsModel = run(true, limit);
+        String filepath = fimsModel.writeHTML(PathManager.createUniqueFile("output.html", outputDirectory), limit);
 
         fimsModel.close();
         return filepath;
@@ -206,12 +539,45 @@ public class FimsQueryBuilder {
         return json;
     }
 
+    /**
+     * Write a KML Placemark for each resource with coordinates. The resources are fetched and written a page at a
+     * time, so only one page of the query is held in memory
+     *
+     * @return
+     */
     public String writeKML() {
-        FimsModel fimsModel = run();
-        String filepath = fimsModel.writeKML(PathManager.createUniqueFile("output.kml", outputDirectory));
+        File file = PathManager.createUniqueFile("output.kml", outputDirectory);
 
-        fimsModel.close();
-        return filepath;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            QueryWriter.writeKMLHeader(writer);
+            forEachPageModel(EXPORT_PAGE_SIZE, page -> page.writeKMLPlacemarks(writer));
+            QueryWriter.writeKMLFooter(writer);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Write a GeoJSON Feature for each resource with coordinates. The resources are fetched and written a page at a
+     * time, so only one page of the query is held in memory
+     *
+     * @return
+     */
+    public String writeGeoJSON() {
+        File file = PathManager.createUniqueFile("output.geojson", outputDirectory);
+
+        try (JsonGenerator generator = new JsonFactory().createGenerator(file, JsonEncoding.UTF8)) {
+            QueryWriter.writeGeoJSONHeader(generator);
+            forEachPageModel(EXPORT_PAGE_SIZE, page -> page.writeGeoJSONFeatures(generator));
+            QueryWriter.writeGeoJSONFooter(generator);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+
+        return file.getAbsolutePath();
     }
 
     public String writeTAB() {
@@ -230,23 +596,102 @@ public class FimsQueryBuilder {
         return filepath;
     }
 
+    /**
+     * Write the csv to the given file, atomically. The csv is written to a .tmp file next to it, which is renamed to
+     * the file once complete, so the file never holds a partial csv
+     *
+     * @param file
+     * @param getOnlySpecifiedProperties
+     * @return the number of rows written
+     */
+    public int writeCSV(File file, boolean getOnlySpecifiedProperties) {
+        FimsModel fimsModel = run(getOnlySpecifiedProperties);
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+
+        try {
+            fimsModel.writeCSV(tempFile);
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return fimsModel.getRowCount();
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        } finally {
+            tempFile.delete();
+            fimsModel.close();
+        }
+    }
+
+    /**
+     * Write an excel workbook of the resources, along with the other sheets of the project's template.
+     * <p>
+     * TemplateProcessor builds the workbook from a data sheet holding only the header row. The resources are then
+     * fetched a page at a time and appended to the end of its data sheet through a streaming workbook, which only keeps
+     * EXCEL_ROW_ACCESS_WINDOW rows in memory and flushes older rows to a temp file, so neither the query results nor
+     * the sheet are held in memory as a whole
+     *
+     * @param projectId
+     * @return
+     */
     public String writeExcel(int projectId) {
-        FimsModel fimsModel = run();
-        String outputPath = fimsModel.writeExcel(PathManager.createUniqueFile("output.xlsx", outputDirectory));
+        QueryWriter headerWriter = new QueryWriter(getSchema(), mapping.getDefaultSheetName());
+        // the column FimsModel adds to each row for the resource's identifier
+        headerWriter.getColumnPosition("bcid");
 
         // Here we attach the other components of the excel sheet found with
-        XSSFWorkbook justData = null;
-        try {
-            justData = new XSSFWorkbook(new FileInputStream(outputPath));
+        TemplateProcessor t = new TemplateProcessor(projectId, outputDirectory, headerWriter.getExcelWorkbook(), naan);
+        File file = t.createExcelFileFromExistingSources(EXCEL_SHEET_NAME, outputDirectory);
+
+        XSSFWorkbook template;
+        try (InputStream in = new FileInputStream(file)) {
+            template = new XSSFWorkbook(in);
         } catch (IOException e) {
-            logger.error("", e);
+            throw new FimsRuntimeException(500, e);
         }
 
-        TemplateProcessor t = new TemplateProcessor(projectId, outputDirectory, justData, naan);
-        String filepath = t.createExcelFileFromExistingSources("Samples", outputDirectory).getAbsolutePath();
+        XSSFSheet templateSheet = template.getSheet(EXCEL_SHEET_NAME);
+        if (templateSheet == null) {
+            throw new FimsRuntimeException("template for project " + projectId + " has no " + EXCEL_SHEET_NAME +
+                    " sheet", 500);
+        }
 
-        fimsModel.close();
-        return filepath;
+        // the template's column for each header, as the template may order the columns differently
+        Map<String, Integer> sheetColumns = new HashMap<String, Integer>();
+        Row header = templateSheet.getRow(templateSheet.getFirstRowNum());
+        if (header != null) {
+            for (Cell cell : header) {
+                sheetColumns.put(cell.getStringCellValue(), cell.getColumnIndex());
+            }
+        }
+        // rows can only be streamed after the last row of the template
+        int[] nextRow = {templateSheet.getLastRowNum() + 1};
+
+        SXSSFWorkbook streamingWb = new SXSSFWorkbook(template, EXCEL_ROW_ACCESS_WINDOW);
+        streamingWb.setCompressTempFiles(true);
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+
+        try {
+            Sheet sheet = streamingWb.getSheet(EXCEL_SHEET_NAME);
+            Map<DataType, CellStyle> styles = new HashMap<DataType, CellStyle>();
+
+            forEachPageModel(EXPORT_PAGE_SIZE, page -> {
+                page.appendRows(sheet, nextRow[0], sheetColumns, styles);
+                nextRow[0] += page.getRowCount();
+            });
+
+            try (OutputStream out = new FileOutputStream(tempFile)) {
+                streamingWb.write(out);
+            }
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        } finally {
+            tempFile.delete();
+            // remove the temp files backing the streaming sheet
+            streamingWb.dispose();
+        }
+
+        return file.getAbsolutePath();
     }
 
     private FimsModel run() {
@@ -261,10 +706,23 @@ public class FimsQueryBuilder {
      * @return
      */
     private FimsModel run(boolean getOnlySpecifiedProperties) {
+        return run(getOnlySpecifiedProperties, 0);
+    }
+
+    /**
+     * builds the Model from all the information we have collected, fetching at most limit resources
+     *
+     * @param getOnlySpecifiedProperties
+     * @param limit the maximum number of resources to fetch. 0 fetches all resources
+     * @return
+     */
+    private FimsModel run(boolean getOnlySpecifiedProperties, int limit) {
         FimsModel fimsModel;
 
         // Construct a FimsModel, wrapping a filtered model around a model only when necessary
-        if (filterArrayList.size() > 0) {
+        if (limit > 0 || boundingBox != null) {
+            fimsModel = getFIMSModel(getModel(limit), getOnlySpecifiedProperties);
+        } else if (filterArrayList.size() > 0) {
             fimsModel = getFIMSModel(getFilteredModel(getModel()), getOnlySpecifiedProperties);
         } else {
             fimsModel = getFIMSModel(getModel(), getOnlySpecifiedProperties);
@@ -320,6 +778,38 @@ public class FimsQueryBuilder {
 //        System.out.println("File location: " + outputFileLocation);
     }
 
+    /**
+     * Remove the ROOT_MARKER statements from the model
+     *
+     * @param model
+     * @return the marked root resources, or null if the model has no markers, in which case every resource is a root
+     */
+    private static Set<Resource> removeRootMarkers(Model model) {
+        Property marker = model.createProperty(ROOT_MARKER);
+        if (!model.contains(null, marker)) {
+            return null;
+        }
+
+        Set<Resource> roots = new HashSet<Resource>();
+        ResIterator it = model.listSubjectsWithProperty(marker);
+        try {
+            while (it.hasNext()) {
+                roots.add(it.nextResource());
+            }
+        } finally {
+            it.close();
+        }
+        model.removeAll(null, marker, null);
+        return roots;
+    }
+
+    private AttributeSchema getSchema() {
+        if (schema == null) {
+            schema = new AttributeSchema(mapping);
+        }
+        return schema;
+    }
+
     /**
      * Create a FimsModel to store the results from this query
      */
@@ -327,7 +817,7 @@ public class FimsQueryBuilder {
 
         // Create a queryWriter object
         QueryWriter queryWriter = new QueryWriter(
-                mapping.getDefaultSheetAttributes(),
+                getSchema(),
                 mapping.getDefaultSheetName());
 
         // Construct the FIMS model
@@ -336,9 +826,10 @@ public class FimsQueryBuilder {
                 queryWriter,
                 mapping,
                 getOnlySpecifiedProperties);
+        fimsModel.setMaxDepth(maxRelationDepth);
 
-        // Read rows starting at the Resource node
-        fimsModel.readRows("http://www.w3.org/2000/01/rdf-schema#Resource");
+        // Read rows starting at the Resource node, only for the marked roots of a model built by constructRoots
+        fimsModel.readRows("http://www.w3.org/2000/01/rdf-schema#Resource", removeRootMarkers(model));
 
         // Return the FimsModel
         return fimsModel;
@@ -4,46 +4,66 @@ import biocode.fims.digester.Attribute;
 import biocode.fims.digester.DataType;
 import biocode.fims.fimsExceptions.FimsRuntimeException;
 import biocode.fims.rest.SpringObjectMapper;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.hp.hpl.jena.graph.Node;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.poi.hssf.usermodel.HSSFDataFormat;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 /**
- * Loop a bunch of attributes, queried from some model and write to a spreadsheet
+ * Loop a bunch of attributes, queried from some model and write to a {@link RowStore}, from which the various
+ * output formats are written.
  * Keep track of columns we want to display, starting with an ArrayList of attributes, corresponding
  * to column names and tracking URI references as defined by the Mapping digester class.
  */
 public class QueryWriter {
     // Loop all the columns associated with this worksheet
     List<Attribute> attributes;
+    AttributeSchema schema;
     ArrayList extraColumns;
+    // column positions of the extra columns, keyed by column name
+    Map<String, Integer> extraColumnPositions;
     Integer totalColumns;
-    XSSFWorkbook wb = new XSSFWorkbook();
-    Sheet sheet;
+    String sheetName;
+    RowStore rows = new RowStore();
+    // default maximum number of rows written to an HTML table
+    private static final int HTML_LIMIT = 10000;
     private static Logger logger = LoggerFactory.getLogger(QueryWriter.class);
 
     /**
      * @param attributes ArrayList of attributes passed as argument is meant to come from digester.Mapping instance
      */
     public QueryWriter(List<Attribute> attributes, String sheetName) {
-        this.attributes = attributes;
+        this(new AttributeSchema(attributes), sheetName);
+    }
+
+    /**
+     * @param schema AttributeSchema built from the digester.Mapping instance
+     */
+    public QueryWriter(AttributeSchema schema, String sheetName) {
+        this.schema = schema;
+        this.attributes = schema.getAttributes();
+        this.sheetName = sheetName;
         totalColumns = attributes.size() - 1;
         extraColumns = new ArrayList();
+        extraColumnPositions = new HashMap<String, Integer>();
 
-        sheet = wb.createSheet(sheetName);
+        rows.ensureColumns(attributes.size());
+    }
+
+    public AttributeSchema getSchema() {
+        return schema;
     }
 
     /**
@@ -53,382 +73,396 @@ public class QueryWriter {
      * @return
      */
     public Integer getColumnPosition(String columnName) {
-        Iterator it = attributes.iterator();
-        int count = 0;
-        while (it.hasNext()) {
-            Attribute attribute = (Attribute) it.next();
-            if (columnName.equals(attribute.getColumn())) {
-                return count;
-            }
-            count++;
+        Integer position = schema.getColumnPosition(columnName);
+        if (position != null) {
+            return position;
         }
 
         // Track any extra columns we find
-        Iterator itExtraColumns = extraColumns.iterator();
-        // position counter at end of known columns
-        int positionExtraColumn = attributes.size();
-        // loop the existing extracolumns array, looking for matches, returning position if found
-        while (itExtraColumns.hasNext()) {
-            String col = (String) itExtraColumns.next();
-            if (col.equals(columnName)) {
-                return positionExtraColumn;
-            }
-            positionExtraColumn++;
+        position = extraColumnPositions.get(columnName);
+        if (position != null) {
+            return position;
         }
 
         // If we don't find it then add it to the extracolumns
         extraColumns.add(columnName);
         totalColumns++;
+        extraColumnPositions.put(columnName, totalColumns);
         return totalColumns;
     }
 
+    /**
+     * @return the number of columns (initial + extra ones encountered)
+     */
+    public int getColumnCount() {
+        return attributes.size() + extraColumns.size();
+    }
+
+    /**
+     * @param columnIndex
+     * @return the column name at this index (initial + extra ones encountered)
+     */
+    public String getColumnName(int columnIndex) {
+        if (columnIndex < attributes.size()) {
+            return attributes.get(columnIndex).getColumn();
+        }
+        return (String) extraColumns.get(columnIndex - attributes.size());
+    }
+
     /**
      * Create a header row for all columns (initial + extra ones encountered)
      *
      * @param sheet
      * @return
      */
-    public org.apache.poi.ss.usermodel.Row createHeaderRow(Sheet sheet) {
-        org.apache.poi.ss.usermodel.Row row = sheet.createRow((short) 0);
-
-        Iterator it = attributes.iterator();
-        int count = 0;
-        while (it.hasNext()) {
-            Attribute attribute = (Attribute) it.next();
-            String colName = attribute.getColumn();
-            row.createCell(count).setCellValue(colName);
-            count++;
-        }
-
-        Iterator itExtraColumns = extraColumns.iterator();
+    public Row createHeaderRow(Sheet sheet) {
+        Row row = sheet.createRow((short) 0);
 
-        while (itExtraColumns.hasNext()) {
-            String colName = (String) itExtraColumns.next();
-            row.createCell(count).setCellValue(colName);
-            count++;
+        for (int count = 0; count < getColumnCount(); count++) {
+            row.createCell(count).setCellValue(getColumnName(count));
         }
 
         return row;
     }
 
-
     /**
-     * create a row at a specified index
-     *
-     * @param rowNum
-     * @return
+     * @return the number of rows written
      */
-    public Row createRow(int rowNum) {
-        // make ALL rows one more than the expected rowNumber to account for the header row
-        return sheet.createRow(rowNum + 1);
+    public int getRowCount() {
+        return rows.getRowCount();
     }
 
     /**
-     * Remove a row by its index
-     *
-     * @param rowIndex a 0 based index of removing row
+     * Start a new row. Cells created are added to this row, which is only kept once commitRow is called
      */
-    public void removeRow(int rowIndex) {
-
-        // account for header row
-        int rowtoRemove = rowIndex + 1;
+    public void startRow() {
+        rows.startRow();
+    }
 
-        int lastRowNum = sheet.getLastRowNum();
-        if (rowtoRemove >= 0 && rowtoRemove < lastRowNum) {
-            sheet.shiftRows(rowtoRemove + 1, lastRowNum, -1);
-        }
+    /**
+     * Keep the current row
+     */
+    public void commitRow() {
+        rows.commitRow();
+    }
 
-        if (rowIndex == lastRowNum) {
-            org.apache.poi.ss.usermodel.Row removingRow = sheet.getRow(rowtoRemove);
-            if (removingRow != null) {
-                sheet.removeRow(removingRow);
-            }
-        }
+    /**
+     * Drop the current row, e.g. because no values were found for it
+     */
+    public void discardRow() {
+        rows.discardRow();
     }
 
     /**
-     * Write data to a particular cell given the row/column(predicate) and a value
+     * Write data to a particular cell of the current row given the column(predicate) and a value
      *
-     * @param row
      * @param predicate
      * @param value
      */
-    public void createCell(Row row, String predicate, String value) {
-        String colName = predicate;
-        //System.out.println(colName);
-        DataType datatype = null;
-        // Loop attributes and use column names instead of URI value in column position lookups
-        Iterator it = attributes.iterator();
-        while (it.hasNext()) {
-            Attribute attribute = (Attribute) it.next();
-            // map column names to datatype
-            try {
-                if (attribute.getUri().equals(predicate)) {
-                    colName = attribute.getColumn();
-                    datatype = attribute.getDatatype();
-                }
+    public void createCell(String predicate, String value) {
+        createCell(Node.createURI(predicate), value);
+    }
 
-            } catch (Exception e) {
-                //TODO should we be catching Exception?
-                logger.error("Exception", e);
-                // For now, do nothing.
-            }
+    /**
+     * Write data to a particular cell of the current row given the column(predicate) and a value
+     *
+     * @param predicate
+     * @param value
+     */
+    public void createCell(Node predicate, String value) {
+        // use column names instead of URI value in column position lookups
+        Integer columnIndex = schema.getColumnIndex(predicate);
+        if (columnIndex == null) {
+            columnIndex = getColumnPosition(predicate.getURI());
         }
-
-
-        Cell cell = row.createCell(getColumnPosition(colName));
+        DataType datatype = schema.getDatatype(predicate);
 
         // Set the value conditionally, we can specify datatypes in the configuration file so interpret them
         // as appropriate here.
         // TODO handle other DataTypes?
         if (datatype != null && (
                 datatype.equals(DataType.INTEGER) || datatype.equals(DataType.FLOAT))) {
-            //fimsPrinter.out.println("value = " + value);
             //Its a number(int or float).. Excel treats both as numeric
-            XSSFCellStyle style = (XSSFCellStyle) wb.createCellStyle();
             try {
                 if (datatype.equals(DataType.INTEGER)) {
-                    style.setDataFormat(HSSFDataFormat.getBuiltinFormat("0"));
-                    cell.setCellValue(Integer.parseInt(value));
-                    cell.setCellStyle(style);
+                    rows.setNumber(columnIndex, Integer.parseInt(value));
                 } else {
-                    style.setDataFormat(HSSFDataFormat.getBuiltinFormat("0.0"));
-                    cell.setCellStyle(style);
-                    // even though this is a float datatype, cell.setCellValue only accepts double values.
+                    // even though this is a float datatype, we store double values.
                     // if we pass a float value, it will be cast to double, and incorrect "percision" is added,
                     // giving us a different value
-                    cell.setCellValue(Double.parseDouble(value));
+                    rows.setNumber(columnIndex, Double.parseDouble(value));
                 }
             } catch (NumberFormatException e) {
                 logger.warn("error converting {} to float value", value);
-                cell.setCellValue(value);
+                rows.setString(columnIndex, value);
             }
         } else {
-            cell.setCellValue(value);
+            rows.setString(columnIndex, value);
         }
     }
 
     /**
-     * Write output to a file
+     * Get the value of a cell as a String. Numbers in INTEGER columns are returned without a decimal.
+     *
+     * @param rowIndex
+     * @param columnIndex
+     * @return the value, or "" if the cell is empty
      */
-    public String writeExcel(File file) {
-        // Header Row
-        createHeaderRow(sheet);
-        // Write the output to a file
-        FileOutputStream fileOut = null;
-        try {
-            //File file = new File(fileLocation);
-            fileOut = new FileOutputStream(file);
-
-            //File outputFile = t.createExcelFile("Samples", "tripleOutput", a);
-
-            wb.write(fileOut);
-
-            fileOut.close();
-            return file.getAbsolutePath();
-        } catch (FileNotFoundException e) {
-            throw new FimsRuntimeException(500, e);
-        } catch (IOException e) {
-            throw new FimsRuntimeException(500, e);
+    public String getCellValue(int rowIndex, int columnIndex) {
+        if (rows.isNumeric(rowIndex, columnIndex)) {
+            double value = rows.getNumber(rowIndex, columnIndex);
+            // numbers are stored as double. If it is an integer, get the int value
+            if (getDatatype(columnIndex) == DataType.INTEGER) {
+                return String.valueOf((int) value);
+            }
+            return String.valueOf(value);
         }
+
+        String value = rows.getString(rowIndex, columnIndex);
+        return value == null ? "" : value;
     }
 
     /**
-     * This returns the query results as a ArrayNode of ObjectNodes where each ObjectNode contains "field":"value" pairs
+     * Return the shared numeric CellStyle for this datatype, creating it in the workbook on first use.
+     * Creating a style per cell bloats the styles table and hits excel's style limit on large exports.
      *
+     * @param workbook
+     * @param styles   the styles already created in this workbook
+     * @param datatype either DataType.INTEGER or DataType.FLOAT
      * @return
      */
-    public ArrayNode getJSON() {
-        ArrayNode dataset = new SpringObjectMapper().createArrayNode();
-
-        // Iterate through the rows.
-        for (Row row : sheet) {
-            ObjectNode resource = dataset.addObject();
-
-            for (int index = 0; index < attributes.size(); index++) {
-                Cell cell = row.getCell(index, Row.CREATE_NULL_AS_BLANK);
-                Object value = null;
-
-                if (cell != null) {
-
-                    switch (cell.getCellType()) {
+    private static CellStyle getCellStyle(Workbook workbook, Map<DataType, CellStyle> styles, DataType datatype) {
+        CellStyle style = styles.get(datatype);
+        if (style == null) {
+            style = workbook.createCellStyle();
+            if (datatype.equals(DataType.INTEGER)) {
+                style.setDataFormat(HSSFDataFormat.getBuiltinFormat("0"));
+            } else {
+                style.setDataFormat(HSSFDataFormat.getBuiltinFormat("0.0"));
+            }
+            styles.put(datatype, style);
+        }
+        return style;
+    }
 
-                        case Cell.CELL_TYPE_STRING:
-                            value = cell.getRichStringCellValue().getString();
-                            break;
+    /**
+     * Write the header and all rows to a sheet in the given workbook
+     *
+     * @param workbook
+     */
+    private void writeSheet(Workbook workbook) {
+        Map<DataType, CellStyle> styles = new HashMap<DataType, CellStyle>();
+        Sheet sheet = workbook.createSheet(sheetName);
 
-                        case Cell.CELL_TYPE_NUMERIC:
-                            if (DateUtil.isCellDateFormatted(cell)) {
-                                value = cell.getDateCellValue();
-                            } else {
-                                value = cell.getNumericCellValue();
-                                // excel will return numbers as double. If it is an integer, get the int value
-                                if (attributes.get(index).getDatatype() == DataType.INTEGER) {
-                                    value = ((Double) value).intValue();
-                                }
-                            }
-                            break;
+        // Header Row
+        createHeaderRow(sheet);
 
-                        case Cell.CELL_TYPE_BOOLEAN:
-                            value = cell.getBooleanCellValue();
-                            break;
+        for (int rowIndex = 0; rowIndex < rows.getRowCount(); rowIndex++) {
+            // make ALL rows one more than the rowIndex to account for the header row
+            Row row = sheet.createRow(rowIndex + 1);
 
-                        case Cell.CELL_TYPE_FORMULA:
-                            value = cell.getCellFormula();
-                            break;
+            for (int columnIndex = 0; columnIndex < rows.getLastColumnNum(rowIndex); columnIndex++) {
+                if (!rows.isEmpty(rowIndex, columnIndex)) {
+                    writeCell(row.createCell(columnIndex), rowIndex, columnIndex, workbook, styles);
+                }
+            }
+        }
+    }
 
-                        case Cell.CELL_TYPE_BLANK:
-                            value = "";
-                            break;
+    /**
+     * Append all rows to an existing sheet, such as the data sheet of a template, writing each column to the sheet
+     * column with the same name. Columns which aren't in the sheet are left out
+     *
+     * @param sheet
+     * @param firstRow     the sheet row to write the first row to
+     * @param sheetColumns the sheet column of each column name
+     * @param styles       the styles already created in the sheet's workbook
+     */
+    public void appendRows(Sheet sheet, int firstRow, Map<String, Integer> sheetColumns,
+                           Map<DataType, CellStyle> styles) {
+        int[] targetColumns = new int[getColumnCount()];
+        for (int columnIndex = 0; columnIndex < targetColumns.length; columnIndex++) {
+            Integer target = sheetColumns.get(getColumnName(columnIndex));
+            targetColumns[columnIndex] = target == null ? -1 : target;
+        }
 
-                        default:
-                            value = cell.toString();
+        for (int rowIndex = 0; rowIndex < rows.getRowCount(); rowIndex++) {
+            Row row = sheet.createRow(firstRow + rowIndex);
 
-                    }
+            for (int columnIndex = 0; columnIndex < rows.getLastColumnNum(rowIndex); columnIndex++) {
+                if (!rows.isEmpty(rowIndex, columnIndex) && targetColumns[columnIndex] >= 0) {
+                    writeCell(row.createCell(targetColumns[columnIndex]), rowIndex, columnIndex,
+                            sheet.getWorkbook(), styles);
                 }
+            }
+        }
+    }
 
-                resource.put(attributes.get(index).getColumn(), String.valueOf(value));
+    private void writeCell(Cell cell, int rowIndex, int columnIndex, Workbook workbook,
+                           Map<DataType, CellStyle> styles) {
+        if (rows.isNumeric(rowIndex, columnIndex)) {
+            cell.setCellValue(rows.getNumber(rowIndex, columnIndex));
+
+            DataType datatype = getDatatype(columnIndex);
+            if (datatype != null &&
+                    (datatype.equals(DataType.INTEGER) || datatype.equals(DataType.FLOAT))) {
+                cell.setCellStyle(getCellStyle(workbook, styles, datatype));
             }
+        } else {
+            cell.setCellValue(rows.getString(rowIndex, columnIndex));
         }
-        return dataset;
     }
 
     /**
-     * Return the default sheet used for processing
+     * Return an in memory workbook containing the results, for handing directly to a TemplateProcessor
      *
      * @return
      */
-
-    public XSSFWorkbook getWorkbook() {
+    public XSSFWorkbook getExcelWorkbook() {
+        XSSFWorkbook wb = new XSSFWorkbook();
+        writeSheet(wb);
         return wb;
     }
 
-    public String writeHTML(File file) {
-        StringBuilder sbHeader = new StringBuilder();
-        StringBuilder sb = new StringBuilder();
-        // Header Row
-        createHeaderRow(sheet);
+    /**
+     * @param columnIndex
+     * @return the DataType of the attribute at this column index, or null if this is an extra column
+     */
+    private DataType getDatatype(int columnIndex) {
+        if (columnIndex < attributes.size()) {
+            return attributes.get(columnIndex).getDatatype();
+        }
+        return null;
+    }
+
+    /**
+     * This returns the query results as a ArrayNode of ObjectNodes where each ObjectNode contains "field":"value" pairs
+     *
+     * @return
+     */
+    public ArrayNode getJSON() {
+        ArrayNode dataset = new SpringObjectMapper().createArrayNode();
 
         // Iterate through the rows.
-        int count = 0;
-        int LIMIT = 10000;
-        for (Row row : sheet) {
-            if (count < LIMIT) {
-
-                StringBuilder sbRow = new StringBuilder();
-
-                for (int cn = 0; cn < row.getLastCellNum(); cn++) {
-                    Cell cell = row.getCell(cn, Row.CREATE_NULL_AS_BLANK);
-                    if (cell == null) {
-                        sbRow.append("<td></td>");
-
-                    } else {
-                        switch (cell.getCellType()) {
-                            case Cell.CELL_TYPE_STRING:
-                                sbRow.append("<td>" + cell.getRichStringCellValue().getString() + "</td>");
-                                break;
-                            case Cell.CELL_TYPE_NUMERIC:
-                                if (DateUtil.isCellDateFormatted(cell)) {
-                                    sbRow.append("<td>" + cell.getDateCellValue() + "</td>");
-                                } else {
-                                    sbRow.append("<td>" + cell.getNumericCellValue() + "</td>");
-                                }
-                                break;
-                            case Cell.CELL_TYPE_BOOLEAN:
-                                sbRow.append("<td>" + cell.getBooleanCellValue() + "</td>");
-                                break;
-                            case Cell.CELL_TYPE_FORMULA:
-                                sbRow.append("<td>" + cell.getCellFormula() + "</td>");
-                                break;
-                            default:
-                                sbRow.append("<td>" + cell.toString() + "</td>");
-                        }
-                    }
+        for (int rowIndex = 0; rowIndex < rows.getRowCount(); rowIndex++) {
+            ObjectNode resource = dataset.addObject();
 
-                }
-                if (count == 0) {
-                    sbHeader.append("<tr>\n");
-                    sbHeader.append("\t" + sbRow + "\n");
-                    sbHeader.append("</tr>\n");
-                } else {
-                    sb.append("<tr>\n");
-                    sb.append("\t" + sbRow + "\n");
-                    sb.append("\t<tr>\n");
-                }
+            for (int index = 0; index < attributes.size(); index++) {
+                resource.put(attributes.get(index).getColumn(), getCellValue(rowIndex, index));
             }
-            count++;
         }
-
-
-        return writeFile("<table border=1>\n" + sbHeader.toString() + sb.toString() + "</table>", file);
+        return dataset;
     }
 
-    private String writeFile(String content, File file) {
-
-        FileOutputStream fop = null;
-
-        try {
-            fop = new FileOutputStream(file);
+    public String writeHTML(File file) {
+        return writeHTML(file, HTML_LIMIT);
+    }
 
-            // if file doesnt exists, then create it
-            if (!file.exists()) {
-                file.createNewFile();
+    /**
+     * Write the header and the first limit rows as an HTML table. Rows are escaped and streamed to the file
+     * one at a time, rather than building the whole table in memory
+     *
+     * @param file
+     * @param limit
+     * @return
+     */
+    public String writeHTML(File file, int limit) {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.write("<table border=1>\n");
+
+            // Header Row
+            writer.write("<tr>\n\t");
+            for (int cn = 0; cn < getColumnCount(); cn++) {
+                writer.write("<td>");
+                StringEscapeUtils.escapeHtml(writer, getColumnName(cn));
+                writer.write("</td>");
             }
-
-            // get the content in bytes
-            byte[] contentInBytes = content.getBytes();
-
-            fop.write(contentInBytes);
-            fop.flush();
-            fop.close();
-
-        } catch (IOException e) {
-            logger.warn("IOException", e);
-        } finally {
-            try {
-                if (fop != null) {
-                    fop.close();
+            writer.write("\n</tr>\n");
+
+            // Iterate through the rows.
+            for (int rowIndex = 0; rowIndex < rows.getRowCount() && rowIndex < limit; rowIndex++) {
+                writer.write("<tr>\n\t");
+                for (int cn = 0; cn < rows.getLastColumnNum(rowIndex); cn++) {
+                    writer.write("<td>");
+                    StringEscapeUtils.escapeHtml(writer, getCellValue(rowIndex, cn));
+                    writer.write("</td>");
                 }
-            } catch (IOException e) {
-                logger.warn("IOException", e);
+                writer.write("\n</tr>\n");
             }
+
+            writer.write("</table>");
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
         }
+
         return file.getAbsolutePath();
     }
 
+    /**
+     * @param columnName
+     * @return the index of the first column with this name, ignoring case, or -1 if there is no such column
+     */
+    private int findColumnIgnoreCase(String columnName) {
+        for (int index = 0; index < getColumnCount(); index++) {
+            if (columnName.equalsIgnoreCase(getColumnName(index))) {
+                return index;
+            }
+        }
+        return -1;
+    }
 
-    public String writeKML(File file) {
-        createHeaderRow(sheet);
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-                "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n" +
-                "\t<Document>\n");
+    /**
+     * @param rowIndex
+     * @param columnIndex
+     * @return the value of this cell if it is a number, otherwise null
+     */
+    private Double getCoordinate(int rowIndex, int columnIndex) {
+        if (rows.isNumeric(rowIndex, columnIndex)) {
+            return rows.getNumber(rowIndex, columnIndex);
+        }
+        String value = rows.getString(rowIndex, columnIndex);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
+    /**
+     * Escape a value for use inside a CDATA section
+     *
+     * @param value
+     * @return
+     */
+    private static String escapeCDATA(String value) {
+        return value.replace("]]>", "]]]]><![CDATA[>");
+    }
 
-        // Iterate through the rows.
-        ArrayList rows = new ArrayList();
-        for (Iterator<Row> rowsIT = sheet.rowIterator(); rowsIT.hasNext(); ) {
-            Row row = rowsIT.next();
-            //JSONObject jRow = new JSONObject();
-
-            // Iterate through the cells.
-            ArrayList cells = new ArrayList();
-            for (Iterator<Cell> cellsIT = row.cellIterator(); cellsIT.hasNext(); ) {
-                Cell cell = cellsIT.next();
-                /* if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC)
-                cells.add(cell.getNumericCellValue());
-            else
-                cells.add(cell.getStringCellValue());
-                */
-                cells.add(cell);
-            }
-            rows.add(cells);
+    /**
+     * Write a KML Placemark for each row with a decimalLatitude and decimalLongitude. The columns are looked
+     * up once and placemarks are streamed to the file one row at a time.
+     *
+     * @param file
+     * @return
+     */
+    public String writeKML(File file) {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeKMLHeader(writer);
+            writeKMLPlacemarks(writer);
+            writeKMLFooter(writer);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
         }
 
-        Iterator rowsIt = rows.iterator();
-        int count = 0;
+        return file.getAbsolutePath();
+    }
 
+    static void writeKMLHeader(Writer writer) throws IOException {
         /*   <?xml version="1.0" encoding="UTF-8"?>
         <kml xmlns="http://www.opengis.net/kml/2.2">
           <Document>
@@ -448,66 +482,146 @@ public class QueryWriter {
             </Placemark>
           </Document>
         </kml>*/
-        while (rowsIt.hasNext()) {
-            ArrayList cells = (ArrayList) rowsIt.next();
-            Iterator cellsIt = cells.iterator();
-
-            // don't take the first row, its a header.
-            if (count > 1) {
-                StringBuilder header = new StringBuilder();
-
-                StringBuilder description = new StringBuilder();
-                StringBuilder name = new StringBuilder();
-
-                header.append("\t<Placemark>\n");
-                description.append("\t\t<description>\n");
-                String decimalLatitude = null;
-                String decimalLongitude = null;
-                description.append("\t\t<![CDATA[");
-
-                int fields = 0;
-                // take all the fields
-                while (cellsIt.hasNext()) {
-                    Cell c = (Cell) cellsIt.next();
-                    Integer index = c.getColumnIndex();
-                    String value = c.toString();
-                    String fieldname = sheet.getRow(0).getCell(index).toString();
-
-                    //Only take the first 10 fields for data....
-                    if (fields < 10)
-                        description.append("<br>" + fieldname + "=" + value);
-
-                    if (fieldname.equalsIgnoreCase("decimalLatitude") && !value.equals(""))
-                        decimalLatitude = value;
-                    if (fieldname.equalsIgnoreCase("decimalLongitude") && !value.equals(""))
-                        decimalLongitude = value;
-                    if (fieldname.equalsIgnoreCase("materialSampleID"))
-                        name.append("\t\t<name>" + value + "</name>\n");
-
-                    fields++;
-                }
-                description.append("\t\t]]>\n");
-                description.append("\t\t</description>\n");
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n" +
+                "\t<Document>\n");
+    }
 
-                if (decimalLatitude != null && decimalLongitude != null) {
-                    sb.append(header);
-                    sb.append(name);
-                    sb.append(description);
+    /**
+     * Write the KML Placemarks of these rows, so the rows of several pages can be written between one header and
+     * footer
+     *
+     * @param writer
+     */
+    void writeKMLPlacemarks(Writer writer) throws IOException {
+        int latitudeIndex = findColumnIgnoreCase(FimsBoundingBox.LATITUDE_COLUMN);
+        int longitudeIndex = findColumnIgnoreCase(FimsBoundingBox.LONGITUDE_COLUMN);
+        int nameIndex = findColumnIgnoreCase("materialSampleID");
 
-                    sb.append("\t\t<Point>\n");
-                    sb.append("\t\t\t<coordinates>" + decimalLongitude + "," + decimalLatitude + "</coordinates>\n");
-                    sb.append("\t\t</Point>\n");
+        // Iterate through the rows.
+        for (int rowIndex = 0; latitudeIndex >= 0 && longitudeIndex >= 0 && rowIndex < rows.getRowCount(); rowIndex++) {
+            String decimalLatitude = getCellValue(rowIndex, latitudeIndex);
+            String decimalLongitude = getCellValue(rowIndex, longitudeIndex);
+            if (decimalLatitude.equals("") || decimalLongitude.equals("")) {
+                continue;
+            }
 
-                    sb.append("\t</Placemark>\n");
-                }
+            writer.write("\t<Placemark>\n");
 
+            if (nameIndex >= 0 && !rows.isEmpty(rowIndex, nameIndex)) {
+                writer.write("\t\t<name>");
+                StringEscapeUtils.escapeXml(writer, getCellValue(rowIndex, nameIndex));
+                writer.write("</name>\n");
+            }
+
+            writer.write("\t\t<description>\n");
+            writer.write("\t\t<![CDATA[");
+
+            //Only take the first 10 fields for data....
+            int fields = 0;
+            for (int index = 0; index < rows.getLastColumnNum(rowIndex) && fields < 10; index++) {
+                if (rows.isEmpty(rowIndex, index)) {
+                    continue;
+                }
+                writer.write("<br>" + escapeCDATA(String.valueOf(getColumnName(index))) + "=" +
+                        escapeCDATA(getCellValue(rowIndex, index)));
+                fields++;
             }
-            count++;
+
+            writer.write("\t\t]]>\n");
+            writer.write("\t\t</description>\n");
+
+            writer.write("\t\t<Point>\n");
+            writer.write("\t\t\t<coordinates>");
+            StringEscapeUtils.escapeXml(writer, decimalLongitude);
+            writer.write(",");
+            StringEscapeUtils.escapeXml(writer, decimalLatitude);
+            writer.write("</coordinates>\n");
+            writer.write("\t\t</Point>\n");
+
+            writer.write("\t</Placemark>\n");
         }
+    }
 
-        sb.append("</Document>\n" +
+    static void writeKMLFooter(Writer writer) throws IOException {
+        writer.write("</Document>\n" +
                 "</kml>");
-        return writeFile(sb.toString(), file);
+    }
+
+    /**
+     * Write a GeoJSON FeatureCollection with a Point Feature for each row with a numeric decimalLatitude and
+     * decimalLongitude. The columns are looked up once and features are streamed to the file one row at a time.
+     *
+     * @param file
+     * @return
+     */
+    public String writeGeoJSON(File file) {
+        try (JsonGenerator generator = new JsonFactory().createGenerator(file, JsonEncoding.UTF8)) {
+            writeGeoJSONHeader(generator);
+            writeGeoJSONFeatures(generator);
+            writeGeoJSONFooter(generator);
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+
+        return file.getAbsolutePath();
+    }
+
+    static void writeGeoJSONHeader(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("type", "FeatureCollection");
+        generator.writeArrayFieldStart("features");
+    }
+
+    /**
+     * Write the GeoJSON Features of these rows, so the rows of several pages can be written between one header and
+     * footer
+     *
+     * @param generator
+     */
+    void writeGeoJSONFeatures(JsonGenerator generator) throws IOException {
+        int latitudeIndex = findColumnIgnoreCase(FimsBoundingBox.LATITUDE_COLUMN);
+        int longitudeIndex = findColumnIgnoreCase(FimsBoundingBox.LONGITUDE_COLUMN);
+        int nameIndex = findColumnIgnoreCase("materialSampleID");
+
+        // Iterate through the rows.
+        for (int rowIndex = 0; latitudeIndex >= 0 && longitudeIndex >= 0 && rowIndex < rows.getRowCount(); rowIndex++) {
+            Double latitude = getCoordinate(rowIndex, latitudeIndex);
+            Double longitude = getCoordinate(rowIndex, longitudeIndex);
+            if (latitude == null || longitude == null) {
+                continue;
+            }
+
+            generator.writeStartObject();
+            generator.writeStringField("type", "Feature");
+
+            if (nameIndex >= 0 && !rows.isEmpty(rowIndex, nameIndex)) {
+                generator.writeStringField("id", getCellValue(rowIndex, nameIndex));
+            }
+
+            generator.writeObjectFieldStart("geometry");
+            generator.writeStringField("type", "Point");
+            generator.writeArrayFieldStart("coordinates");
+            generator.writeNumber(longitude);
+            generator.writeNumber(latitude);
+            generator.writeEndArray();
+            generator.writeEndObject();
+
+            generator.writeObjectFieldStart("properties");
+            for (int index = 0; index < rows.getLastColumnNum(rowIndex); index++) {
+                if (!rows.isEmpty(rowIndex, index)) {
+                    generator.writeStringField(String.valueOf(getColumnName(index)), getCellValue(rowIndex, index));
+                }
+            }
+            generator.writeEndObject();
+
+            generator.writeEndObject();
+        }
+    }
+
+    static void writeGeoJSONFooter(JsonGenerator generator) throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
     }
 
     public String writeCSV(File file, Boolean writeHeader) {
@@ -526,64 +640,26 @@ public class QueryWriter {
     }
 
     private String writeTabularDataFile(File file, boolean writeHeader, String delimeter) {
-        // Header Row
-        if (writeHeader) {
-            createHeaderRow(sheet);
-        }
         // Write the output to a file
-        FileOutputStream fileOut = null;
+        OutputStream fileOut = null;
         try {
             //File file = new File(fileLocation);
-            fileOut = new FileOutputStream(file);
-
-            Iterator rowIt = sheet.rowIterator();
-            while (rowIt.hasNext()) {
-                Row row = (Row) rowIt.next();
-
-                for (int cn = 0; cn < row.getLastCellNum(); cn++) {
-                    Cell cell = row.getCell(cn, Row.CREATE_NULL_AS_BLANK);
-                    if (cell == null) {
-                        fileOut.write((delimeter).getBytes());
-                    } else {
-                        byte[] contentInBytes;
-                        switch (cell.getCellType()) {
-                            case Cell.CELL_TYPE_STRING:
-                                contentInBytes = cell.getRichStringCellValue().getString().getBytes();
-                                break;
-
-                            case Cell.CELL_TYPE_NUMERIC:
-                                if (DateUtil.isCellDateFormatted(cell)) {
-                                    contentInBytes = String.valueOf(cell.getDateCellValue()).getBytes();
-                                } else {
-                                    Double value = cell.getNumericCellValue();
-                                    // excel will return numbers as double. If it is an integer, get the int contentInBytes
-                                    if (attributes.get(cn).getDatatype() == DataType.INTEGER) {
-                                        contentInBytes = String.valueOf(value.intValue()).getBytes();
-                                    } else {
-                                        contentInBytes = String.valueOf(value).getBytes();
-                                    }
-                                }
-                                break;
-
-                            case Cell.CELL_TYPE_BOOLEAN:
-                                contentInBytes = String.valueOf(cell.getBooleanCellValue()).getBytes();
-                                break;
-
-                            case Cell.CELL_TYPE_FORMULA:
-                                contentInBytes = String.valueOf(cell.getCellFormula()).getBytes();
-                                break;
-
-                            case Cell.CELL_TYPE_BLANK:
-                                contentInBytes = "".getBytes();
-                                break;
-
-                            default:
-                                contentInBytes = cell.toString().getBytes();
-
-                        }
-                        fileOut.write(contentInBytes);
-                        fileOut.write((delimeter).getBytes());
-                    }
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+
+            // Header Row
+            if (writeHeader) {
+                for (int cn = 0; cn < getColumnCount(); cn++) {
+                    String colName = getColumnName(cn);
+                    fileOut.write((colName == null ? "" : colName).getBytes());
+                    fileOut.write((delimeter).getBytes());
+                }
+                fileOut.write(("\n").getBytes());
+            }
+
+            for (int rowIndex = 0; rowIndex < rows.getRowCount(); rowIndex++) {
+                for (int cn = 0; cn < rows.getLastColumnNum(rowIndex); cn++) {
+                    fileOut.write(getCellValue(rowIndex, cn).getBytes());
+                    fileOut.write((delimeter).getBytes());
                 }
                 fileOut.write(("\n").getBytes());
             }
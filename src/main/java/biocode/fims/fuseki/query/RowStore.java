@@ -0,0 +1,212 @@
+package biocode.fims.fuseki.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, column oriented, in-memory table holding the results of a query. This is the intermediate
+ * representation that the {@link QueryWriter} builds and that all of the output formats are written from.
+ * <p>
+ * String values are dictionary encoded per column, so each cell is stored as an int code and repeated values
+ * (e.g. controlled vocabularies) are only stored once. Numeric values are stored as primitive doubles.
+ * <p>
+ * Rows are written in two steps. Cells are set on a pending row which is only added to the table when
+ * {@link #commitRow()} is called, so rows that turn out to be empty are discarded without ever being
+ * materialized or shifting any other rows.
+ */
+public class RowStore {
+    // cell codes that aren't dictionary indexes
+    private static final int EMPTY = -1;
+    private static final int NUMERIC = -2;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // stop de-duplicating a column's values once its dictionary is larger than this and holds more than half of
+    // the rows. at that point the column is mostly unique values (ex. identifiers) and the lookup map costs more
+    // than it saves
+    private static final int MAX_DICTIONARY_LOOKUP_SIZE = 1024;
+
+    private final List<Column> columns = new ArrayList<Column>();
+    private int rowCount = 0;
+    private int capacity = INITIAL_CAPACITY;
+
+    /**
+     * @return the number of committed rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    /**
+     * Make sure the store has at least this many columns
+     *
+     * @param columnCount
+     */
+    public void ensureColumns(int columnCount) {
+        while (columns.size() < columnCount) {
+            columns.add(new Column(capacity));
+        }
+    }
+
+    /**
+     * Start a new pending row, clearing any cells left over from a discarded row
+     */
+    public void startRow() {
+        if (rowCount == capacity) {
+            capacity *= 2;
+            for (Column column : columns) {
+                column.grow(capacity);
+            }
+        }
+
+        for (Column column : columns) {
+            column.codes[rowCount] = EMPTY;
+        }
+    }
+
+    /**
+     * Add the pending row to the store
+     */
+    public void commitRow() {
+        rowCount++;
+    }
+
+    /**
+     * Drop the pending row. The cells are cleared on the next call to startRow
+     */
+    public void discardRow() {
+        for (Column column : columns) {
+            column.codes[rowCount] = EMPTY;
+        }
+    }
+
+    /**
+     * Set a string value on the pending row
+     *
+     * @param columnIndex
+     * @param value
+     */
+    public void setString(int columnIndex, String value) {
+        Column column = getColumn(columnIndex);
+        column.codes[rowCount] = column.encode(value, rowCount);
+    }
+
+    /**
+     * Set a numeric value on the pending row
+     *
+     * @param columnIndex
+     * @param value
+     */
+    public void setNumber(int columnIndex, double value) {
+        Column column = getColumn(columnIndex);
+        column.setNumber(rowCount, value);
+        column.codes[rowCount] = NUMERIC;
+    }
+
+    public boolean isEmpty(int rowIndex, int columnIndex) {
+        return columnIndex >= columns.size() || columns.get(columnIndex).codes[rowIndex] == EMPTY;
+    }
+
+    public boolean isNumeric(int rowIndex, int columnIndex) {
+        return columnIndex < columns.size() && columns.get(columnIndex).codes[rowIndex] == NUMERIC;
+    }
+
+    /**
+     * @param rowIndex
+     * @param columnIndex
+     * @return the numeric value of this cell. Only valid if isNumeric is true
+     */
+    public double getNumber(int rowIndex, int columnIndex) {
+        return columns.get(columnIndex).numbers[rowIndex];
+    }
+
+    /**
+     * @param rowIndex
+     * @param columnIndex
+     * @return the string value of this cell, or null if the cell is empty or numeric
+     */
+    public String getString(int rowIndex, int columnIndex) {
+        if (columnIndex >= columns.size()) {
+            return null;
+        }
+        Column column = columns.get(columnIndex);
+        int code = column.codes[rowIndex];
+        return code >= 0 ? column.dictionary.get(code) : null;
+    }
+
+    /**
+     * @param rowIndex
+     * @return one more than the index of the last non-empty column in this row, or 0 if the row is empty
+     */
+    public int getLastColumnNum(int rowIndex) {
+        for (int columnIndex = columns.size() - 1; columnIndex >= 0; columnIndex--) {
+            if (columns.get(columnIndex).codes[rowIndex] != EMPTY) {
+                return columnIndex + 1;
+            }
+        }
+        return 0;
+    }
+
+    private Column getColumn(int columnIndex) {
+        ensureColumns(columnIndex + 1);
+        return columns.get(columnIndex);
+    }
+
+    /**
+     * A single column of cells, stored as codes into the column's dictionary
+     */
+    private static class Column {
+        int[] codes;
+        // only allocated once a numeric value is set in this column
+        double[] numbers;
+
+        final List<String> dictionary = new ArrayList<String>();
+        Map<String, Integer> dictionaryLookup = new HashMap<String, Integer>();
+
+        Column(int capacity) {
+            codes = new int[capacity];
+            Arrays.fill(codes, EMPTY);
+        }
+
+        void grow(int capacity) {
+            int oldCapacity = codes.length;
+            codes = Arrays.copyOf(codes, capacity);
+            Arrays.fill(codes, oldCapacity, capacity, EMPTY);
+            if (numbers != null) {
+                numbers = Arrays.copyOf(numbers, capacity);
+            }
+        }
+
+        void setNumber(int rowIndex, double value) {
+            if (numbers == null) {
+                numbers = new double[codes.length];
+            }
+            numbers[rowIndex] = value;
+        }
+
+        int encode(String value, int rowCount) {
+            if (dictionaryLookup != null) {
+                Integer code = dictionaryLookup.get(value);
+                if (code != null) {
+                    return code;
+                }
+
+                if (dictionary.size() > MAX_DICTIONARY_LOOKUP_SIZE && dictionary.size() > rowCount / 2) {
+                    dictionaryLookup = null;
+                } else {
+                    dictionaryLookup.put(value, dictionary.size());
+                }
+            }
+
+            dictionary.add(value);
+            return dictionary.size() - 1;
+        }
+    }
+}
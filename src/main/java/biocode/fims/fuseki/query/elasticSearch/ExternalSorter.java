@@ -0,0 +1,194 @@
+package biocode.fims.fuseki.query.elasticSearch;
+
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts (key, hash) entries by key, holding at most maxInMemory entries in memory. Once the buffer is full it is
+ * sorted and spilled to a temporary run file, and the runs are merged when the entries are read back.
+ */
+class ExternalSorter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int maxInMemory;
+    private final File tempDirectory;
+    private final List<Entry> buffer = new ArrayList<>();
+    private final List<File> runs = new ArrayList<>();
+    private final List<RunReader> readers = new ArrayList<>();
+
+    static class Entry implements Comparable<Entry> {
+        final String key;
+        final String hash;
+
+        Entry(String key, String hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = key.compareTo(o.key);
+            return c != 0 ? c : hash.compareTo(o.hash);
+        }
+    }
+
+    /**
+     * @param maxInMemory   maximum number of entries held in memory before spilling a run to disk
+     * @param tempDirectory where the run files are written
+     */
+    ExternalSorter(int maxInMemory, File tempDirectory) {
+        this.maxInMemory = maxInMemory;
+        this.tempDirectory = tempDirectory;
+    }
+
+    void add(String key, String hash) {
+        buffer.add(new Entry(key, hash));
+        if (buffer.size() >= maxInMemory) {
+            spill();
+        }
+    }
+
+    /**
+     * @return all the added entries, ordered by key. Only one iterator can be taken from a sorter
+     */
+    Iterator<Entry> sorted() {
+        Collections.sort(buffer);
+        PriorityQueue<PeekingIterator> queue = new PriorityQueue<>(
+                Comparator.comparing((PeekingIterator it) -> it.peek()));
+
+        addIfNotEmpty(queue, new PeekingIterator(buffer.iterator()));
+        for (File run : runs) {
+            RunReader reader = new RunReader(run);
+            readers.add(reader);
+            addIfNotEmpty(queue, new PeekingIterator(reader));
+        }
+
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                PeekingIterator it = queue.poll();
+                if (it == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry entry = it.next();
+                addIfNotEmpty(queue, it);
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        for (RunReader reader : readers) {
+            reader.close();
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+        readers.clear();
+        runs.clear();
+        buffer.clear();
+    }
+
+    private void spill() {
+        Collections.sort(buffer);
+        try {
+            File run = File.createTempFile("sortRun", ".bin", tempDirectory);
+            runs.add(run);
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+                out.writeInt(buffer.size());
+                for (Entry entry : buffer) {
+                    out.writeUTF(entry.key);
+                    out.writeUTF(entry.hash);
+                }
+            }
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+        buffer.clear();
+    }
+
+    private static void addIfNotEmpty(PriorityQueue<PeekingIterator> queue, PeekingIterator it) {
+        if (it.hasNext()) {
+            queue.add(it);
+        }
+    }
+
+    private static class PeekingIterator implements Iterator<Entry> {
+        private final Iterator<Entry> it;
+        private Entry next;
+
+        PeekingIterator(Iterator<Entry> it) {
+            this.it = it;
+            this.next = it.hasNext() ? it.next() : null;
+        }
+
+        Entry peek() {
+            return next;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            Entry entry = next;
+            next = it.hasNext() ? it.next() : null;
+            return entry;
+        }
+    }
+
+    /**
+     * Reads the entries of a spilled run back in order
+     */
+    private static class RunReader implements Iterator<Entry> {
+        private final DataInputStream in;
+        private int remaining;
+
+        RunReader(File run) {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+                remaining = in.readInt();
+            } catch (IOException e) {
+                throw new FimsRuntimeException(500, e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Entry next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                remaining--;
+                return new Entry(in.readUTF(), in.readUTF());
+            } catch (IOException e) {
+                throw new FimsRuntimeException(500, e);
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package biocode.fims.fuseki.query.elasticSearch;
+
+import biocode.fims.elasticSearch.ElasticSearchIndexer;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+import biocode.fims.fuseki.query.FimsQueryBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Indexes a dataset into Elasticsearch while it is read from Fuseki, instead of fetching the whole dataset before
+ * indexing it.
+ * <p>
+ * Resources are read from Fuseki a page at a time and added to a {@link BulkProcessor}, which sends them in bulk
+ * requests of bulkActions resources or bulkSizeMb megabytes. At most concurrentRequests bulk requests are in flight,
+ * and adding a resource blocks while they are, so reading from Fuseki is throttled to the rate Elasticsearch can
+ * index at. Rejected bulk requests are retried with an exponential backoff.
+ * <p>
+ * Once the dataset is indexed, any documents of the expedition which are no longer in the dataset are deleted, so the
+ * expedition's documents are replaced as with {@link ElasticSearchIndexer#indexDataset}. Each document is tagged with
+ * an id of the run that indexed it, so the stale documents are found by searching for those without this run's id,
+ * rather than by holding the ids of all of the indexed documents.
+ */
+public class FusekiBulkIndexer {
+    private static final int DEFAULT_PAGE_SIZE = 5000;
+    private static final int DEFAULT_BULK_ACTIONS = 1000;
+    private static final int DEFAULT_BULK_SIZE_MB = 5;
+    private static final int DEFAULT_CONCURRENT_REQUESTS = 2;
+    private static final int SCROLL_SIZE = 1000;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    private static final long CLOSE_TIMEOUT_MINUTES = 10;
+    // field of the expedition object of each document, holding the id of the run that indexed it
+    private static final String INDEX_RUN_FIELD = "indexRun";
+
+    private static Logger logger = LoggerFactory.getLogger(FusekiBulkIndexer.class);
+
+    private final Client esClient;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int bulkActions = DEFAULT_BULK_ACTIONS;
+    private int bulkSizeMb = DEFAULT_BULK_SIZE_MB;
+    private int concurrentRequests = DEFAULT_CONCURRENT_REQUESTS;
+
+    public FusekiBulkIndexer(Client esClient) {
+        this.esClient = esClient;
+    }
+
+    /**
+     * @param pageSize number of resources fetched from fuseki in each query
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param bulkActions maximum number of resources in each bulk request
+     * @param bulkSizeMb  maximum size of each bulk request
+     */
+    public void setBulkSize(int bulkActions, int bulkSizeMb) {
+        this.bulkActions = bulkActions;
+        this.bulkSizeMb = bulkSizeMb;
+    }
+
+    /**
+     * @param concurrentRequests maximum number of bulk requests in flight
+     */
+    public void setConcurrentRequests(int concurrentRequests) {
+        this.concurrentRequests = concurrentRequests;
+    }
+
+    /**
+     * Index the resources returned by the queryBuilder as the expedition's dataset
+     *
+     * @param projectId
+     * @param expeditionCode
+     * @param queryBuilder   query of the expedition's dataset
+     * @param uniqueKey      column identifying a resource within the expedition
+     * @return the number of resources indexed
+     */
+    public int index(int projectId, String expeditionCode, FimsQueryBuilder queryBuilder, String uniqueKey) {
+        String index = String.valueOf(projectId);
+        String indexRun = UUID.randomUUID().toString();
+        AtomicLong failures = new AtomicLong();
+
+        BulkProcessor bulkProcessor = BulkProcessor.builder(esClient, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                if (response.hasFailures()) {
+                    for (BulkItemResponse item : response.getItems()) {
+                        if (item.isFailed()) {
+                            failures.incrementAndGet();
+                            logger.warn("failed to index {}: {}", item.getId(), item.getFailureMessage());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                failures.addAndGet(request.numberOfActions());
+                logger.warn("bulk request failed", failure);
+            }
+        })
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setConcurrentRequests(concurrentRequests)
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff())
+                .build();
+
+        int total;
+        try {
+            total = queryBuilder.forEachPage(pageSize, page -> {
+                for (JsonNode node : page) {
+                    ObjectNode resource = (ObjectNode) node;
+                    String id = getId(expeditionCode, resource, uniqueKey);
+                    if (id == null) {
+                        failures.incrementAndGet();
+                        logger.warn("resource without a {} in expedition {}", uniqueKey, expeditionCode);
+                        continue;
+                    }
+
+                    resource.putObject("expedition")
+                            .put("expeditionCode", expeditionCode)
+                            .put(INDEX_RUN_FIELD, indexRun);
+                    // blocks while concurrentRequests bulk requests are in flight
+                    bulkProcessor.add(esClient.prepareIndex(index, ElasticSearchIndexer.TYPE, id)
+                            .setSource(resource.toString()).request());
+                }
+                logger.debug("queued {} resources of expedition {}", page.size(), expeditionCode);
+            });
+        } finally {
+            awaitClose(bulkProcessor);
+        }
+
+        // keep the previous documents of any resource which failed to index
+        if (failures.get() > 0) {
+            throw new FimsRuntimeException("failed to index " + failures.get() + " resources of expedition " +
+                    expeditionCode, 500);
+        }
+
+        deleteStaleDocuments(index, expeditionCode, indexRun);
+        return total;
+    }
+
+    /**
+     * Wait for all of the bulk requests to complete
+     */
+    private static void awaitClose(BulkProcessor bulkProcessor) {
+        try {
+            bulkProcessor.awaitClose(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+
+    /**
+     * Delete the expedition's documents which weren't indexed by this run
+     */
+    private void deleteStaleDocuments(String index, String expeditionCode, String indexRun) {
+        // make the documents indexed by this run visible to the search
+        esClient.admin().indices().prepareRefresh(index).get();
+
+        SearchResponse response = esClient.prepareSearch(index)
+                .setTypes(ElasticSearchIndexer.TYPE)
+                .setQuery(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.termQuery("expedition.expeditionCode.keyword", expeditionCode))
+                        .mustNot(QueryBuilders.termQuery("expedition." + INDEX_RUN_FIELD + ".keyword", indexRun)))
+                .setFetchSource(false)
+                .setSize(SCROLL_SIZE)
+                .setScroll(SCROLL_KEEP_ALIVE)
+                .get();
+
+        int deleted = 0;
+        while (response.getHits().getHits().length > 0) {
+            BulkRequestBuilder deletes = esClient.prepareBulk();
+            for (SearchHit hit : response.getHits().getHits()) {
+                deletes.add(esClient.prepareDelete(index, ElasticSearchIndexer.TYPE, hit.getId()));
+            }
+
+            BulkResponse deleteResponse = deletes.get();
+            if (deleteResponse.hasFailures()) {
+                throw new FimsRuntimeException("failed to delete stale documents of expedition " + expeditionCode +
+                        ": " + deleteResponse.buildFailureMessage(), 500);
+            }
+            deleted += deleteResponse.getItems().length;
+
+            response = esClient.prepareSearchScroll(response.getScrollId())
+                    .setScroll(SCROLL_KEEP_ALIVE)
+                    .get();
+        }
+        esClient.prepareClearScroll().addScrollId(response.getScrollId()).get();
+
+        if (deleted > 0) {
+            logger.info("deleted {} documents no longer in expedition {}", deleted, expeditionCode);
+        }
+    }
+
+    static String getId(String expeditionCode, ObjectNode resource, String uniqueKey) {
+        JsonNode value = resource.get(uniqueKey);
+        if (value == null || value.asText().isEmpty()) {
+            return null;
+        }
+        return expeditionCode + "_" + value.asText();
+    }
+}
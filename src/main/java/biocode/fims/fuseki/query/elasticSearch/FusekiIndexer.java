@@ -2,13 +2,15 @@ package biocode.fims.fuseki.query.elasticSearch;
 
 import biocode.fims.application.config.FimsAppConfig;
 import biocode.fims.application.config.FimsProperties;
-import biocode.fims.config.ConfigurationFileFetcher;
 import biocode.fims.digester.Mapping;
 import biocode.fims.entities.Expedition;
 import biocode.fims.entities.Project;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
 import biocode.fims.fileManagers.fimsMetadata.FimsMetadataFileManager;
 import biocode.fims.elasticSearch.ElasticSearchIndexer;
+import biocode.fims.fuseki.ProjectConfigCache;
 import biocode.fims.fuseki.fileManagers.fimsMetadata.FusekiFimsMetadataPersistenceManager;
+import biocode.fims.fuseki.query.FimsQueryBuilder;
 import biocode.fims.run.ProcessController;
 import biocode.fims.service.BcidService;
 import biocode.fims.service.ExpeditionService;
@@ -18,6 +20,7 @@ import biocode.fims.settings.SettingsManager;
 import biocode.fims.settings.StandardPrinter;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import org.apache.commons.cli.*;
+import org.apache.commons.collections.MapUtils;
 import org.elasticsearch.client.Client;
 import org.json.simple.JSONArray;
 import org.springframework.context.ApplicationContext;
@@ -25,18 +28,27 @@ import org.springframework.context.MessageSource;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 
 import java.io.File;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * class for indexing datasets already loaded into Fuseki
  */
 public class FusekiIndexer {
+    private static final int DEFAULT_CONCURRENCY = 4;
+
     private final Client esClient;
     private final ProjectService projectService;
     private ExpeditionService expeditionService;
     private BcidService bcidService;
     private MessageSource messageSource;
     private final FimsProperties props;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private boolean streaming = false;
+    private IndexingState indexingState;
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final Map<Integer, List<String>> failedIndexes = new ConcurrentSkipListMap<>();
 
     public FusekiIndexer(Client esClient, ProjectService projectService, ExpeditionService expeditionService,
                          BcidService bcidService, MessageSource messageSource, FimsProperties props) {
@@ -48,43 +60,172 @@ public class FusekiIndexer {
         this.props = props;
     }
 
+    /**
+     * Set the number of expeditions fetched from fuseki and indexed at the same time
+     *
+     * @param concurrency
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Page through each expedition's dataset and send it to elasticsearch in bulk requests as it is read, instead of
+     * fetching the whole dataset before indexing it. See {@link FusekiBulkIndexer}
+     *
+     * @param streaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Only index expeditions whose latest dataset graph differs from the one recorded in the indexingState, and
+     * record each expedition's graph once it is indexed
+     *
+     * @param indexingState
+     */
+    public void setIndexingState(IndexingState indexingState) {
+        this.indexingState = indexingState;
+    }
+
+    /**
+     * @return the expeditions which failed to index in the last run, keyed by projectId. A project which failed
+     * entirely is listed with the expedition "all"
+     */
+    public Map<Integer, List<String>> getFailedIndexes() {
+        return failedIndexes;
+    }
+
     public void index(int projectId, String outputDirectory) {
-        Project project = projectService.getProjectWithExpeditions(projectId);
+        index(Collections.singletonList(projectId), outputDirectory);
+    }
 
-        File configFile = new ConfigurationFileFetcher(projectId, outputDirectory, true).getOutputFile();
+    /**
+     * Index every expedition of the projects, with up to concurrency expeditions being indexed at a time. The
+     * expeditions of all projects share the same workers, so a project with few expeditions doesn't leave
+     * workers idle.
+     *
+     * @param projectIds
+     * @param outputDirectory
+     */
+    public void index(List<Integer> projectIds, String outputDirectory) {
+        failedIndexes.clear();
+        skipped.set(0);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
 
-        Mapping mapping = new Mapping();
-        mapping.addMappingRules(configFile);
+        try {
+            for (int projectId : projectIds) {
+                Project project;
+                try {
+                    project = projectService.getProjectWithExpeditions(projectId);
+
+                    // fetch the configuration once, before the workers need it
+                    ProjectConfigCache.getInstance().getConfigFile(projectId);
+                } catch (Exception e) {
+                    addFailure(projectId, "all");
+                    e.printStackTrace();
+                    continue;
+                }
+
+                // we need to fetch each Expedition individually as the SheetUniqueKey is only unique on the Expedition level
+                for (Expedition expedition : project.getExpeditions()) {
+                    futures.add(executor.submit(() ->
+                            indexExpedition(projectId, expedition.getExpeditionCode(), outputDirectory)));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FimsRuntimeException(500, e);
+        } catch (ExecutionException e) {
+            // indexExpedition catches its own exceptions, so this is unexpected
+            throw new FimsRuntimeException(500, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
 
-        // we need to fetch each Expedition individually as the SheetUniqueKey is only unique on the Expedition level
-        for (Expedition expedition : project.getExpeditions()) {
+        System.out.println("\nIndexed " + (futures.size() - skipped.get()) + " expeditions in " +
+                (System.currentTimeMillis() - start) + " ms. " + skipped.get() + " unchanged expeditions skipped");
+        if (!failedIndexes.isEmpty()) {
+            MapUtils.debugPrint(System.out, "FAILED INDEXES:", failedIndexes);
+        }
+    }
 
+    private void indexExpedition(int projectId, String expeditionCode, String outputDirectory) {
+        long start = System.currentTimeMillis();
+        try {
             FusekiFimsMetadataPersistenceManager persistenceManager = new FusekiFimsMetadataPersistenceManager(expeditionService, bcidService, props);
+            String graph = persistenceManager.getLatestGraph(projectId, expeditionCode);
+
+            if (indexingState != null && indexingState.isIndexed(projectId, expeditionCode, graph)) {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            Mapping mapping = ProjectConfigCache.getInstance().getMapping(projectId);
+
+            if (streaming) {
+                if (graph == null) {
+                    System.out.println("skipping expedition: " + expeditionCode + " (project " + projectId + "), no dataset");
+                    return;
+                }
+
+                FimsQueryBuilder q = new FimsQueryBuilder(mapping, new String[]{graph}, outputDirectory, props.naan());
+                int resources = new FusekiBulkIndexer(esClient).index(projectId, expeditionCode, q,
+                        mapping.getDefaultSheetUniqueKey());
+
+                markIndexed(projectId, expeditionCode, graph);
+                System.out.println("indexed expedition: " + expeditionCode + " (project " + projectId + "), " +
+                        resources + " resources in " + (System.currentTimeMillis() - start) + " ms");
+                return;
+            }
+
             FimsMetadataFileManager fimsMetadataFileManager = new FimsMetadataFileManager(
                     persistenceManager, props, expeditionService, bcidService, messageSource);
 
-            ProcessController processController = new ProcessController(projectId, expedition.getExpeditionCode());
+            ProcessController processController = new ProcessController(projectId, expeditionCode);
             processController.setOutputFolder(outputDirectory);
             processController.setMapping(mapping);
             fimsMetadataFileManager.setProcessController(processController);
 
-
-            System.out.println("\nQuerying expedition: " + expedition.getExpeditionCode() + "\n");
-
             ArrayNode fimsMetadata = fimsMetadataFileManager.index();
-
-            System.out.println("\nIndexing results ....\n");
+            long fetched = System.currentTimeMillis();
 
             ElasticSearchIndexer indexer = new ElasticSearchIndexer(esClient);
             indexer.indexDataset(
-                    project.getProjectId(),
-                    expedition.getExpeditionCode(),
+                    projectId,
+                    expeditionCode,
                     fimsMetadata
             );
 
+            markIndexed(projectId, expeditionCode, graph);
+            System.out.println("indexed expedition: " + expeditionCode + " (project " + projectId + "), " +
+                    fimsMetadata.size() + " resources. fetched in " + (fetched - start) + " ms, indexed in " +
+                    (System.currentTimeMillis() - fetched) + " ms");
+        } catch (Exception e) {
+            addFailure(projectId, expeditionCode);
+            System.out.println("failed to index expedition: " + expeditionCode + " (project " + projectId + ") after " +
+                    (System.currentTimeMillis() - start) + " ms");
+            e.printStackTrace();
         }
     }
 
+    private void markIndexed(int projectId, String expeditionCode, String graph) {
+        if (indexingState != null) {
+            indexingState.markIndexed(projectId, expeditionCode, graph);
+        }
+    }
+
+    private void addFailure(int projectId, String expeditionCode) {
+        failedIndexes.computeIfAbsent(projectId, k -> Collections.synchronizedList(new ArrayList<>())).add(expeditionCode);
+    }
+
     public static void main(String[] args) throws Exception {
         ApplicationContext applicationContext = new AnnotationConfigApplicationContext(FimsAppConfig.class);
         Client esClient = applicationContext.getBean(Client.class);
@@ -112,6 +253,9 @@ public class FusekiIndexer {
         options.addOption("p", "project_id", false, "Project Identifier.  A numeric integer corresponding to your project");
         options.addOption("o", "output_directory", true, "Output Directory");
         options.addOption("--allProjects", "all_projects", false, "Output Directory");
+        options.addOption("i", "incremental", true, "State file recording the dataset indexed per expedition. Only expeditions with a new dataset since the last run are indexed");
+        options.addOption("s", "streaming", false, "Index each expedition in pages as it is read from fuseki");
+        options.addOption("c", "concurrency", true, "Number of expeditions to index at the same time. Defaults to " + DEFAULT_CONCURRENCY);
 
         // Create the commands parser and parse the command line arguments.
         try {
@@ -136,13 +280,21 @@ public class FusekiIndexer {
         }
 
         FusekiIndexer fusekiIndexer = new FusekiIndexer(esClient, projectService, expeditionService, bcidService, messageSource, props);
+        fusekiIndexer.setStreaming(cl.hasOption("s"));
+        if (cl.hasOption("i")) {
+            fusekiIndexer.setIndexingState(new IndexingState(new File(cl.getOptionValue("i"))));
+        }
+        if (cl.hasOption("c")) {
+            fusekiIndexer.setConcurrency(Integer.parseInt(cl.getOptionValue("c")));
+        }
 
         if (allProjects) {
-            List<Project> projectList = projectService.getProjects();
-
-            for (Project project: projectList) {
-                fusekiIndexer.index(project.getProjectId(), output_directory);
+            List<Integer> projectIds = new ArrayList<>();
+            for (Project project: projectService.getProjects()) {
+                projectIds.add(project.getProjectId());
             }
+
+            fusekiIndexer.index(projectIds, output_directory);
         } else {
             fusekiIndexer.index(projectId, output_directory);
         }
@@ -0,0 +1,255 @@
+package biocode.fims.fuseki.query.elasticSearch;
+
+import biocode.fims.elasticSearch.ElasticSearchIndexer;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+import biocode.fims.fuseki.query.FimsQueryBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+
+/**
+ * Finds the resources which differ between an expedition's dataset in Fuseki and its documents in Elasticsearch.
+ * <p>
+ * The (document id, content hash) pair of every resource is streamed from both stores, Fuseki a page at a time and
+ * Elasticsearch with a scroll, into an {@link ExternalSorter} for each. The two sorted streams are then merged to find
+ * the resources missing from Elasticsearch, the documents no longer in Fuseki, the documents whose content is
+ * stale, and the ids shared by several resources in Fuseki. Only maxInMemory pairs per store are held in memory, the
+ * rest are spilled to disk.
+ */
+public class FusekiToESDiff {
+    private static final int DEFAULT_PAGE_SIZE = 5000;
+    private static final int DEFAULT_MAX_IN_MEMORY = 100000;
+    private static final int SCROLL_SIZE = 1000;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    // field added to each document when indexing, which isn't part of the resource
+    private static final String EXPEDITION_FIELD = "expedition";
+
+    private static Logger logger = LoggerFactory.getLogger(FusekiToESDiff.class);
+
+    private final Client esClient;
+    private final File tempDirectory;
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int maxInMemory = DEFAULT_MAX_IN_MEMORY;
+
+    public enum Status {
+        // in fuseki, but not elasticsearch
+        MISSING,
+        // in elasticsearch, but not fuseki
+        EXTRA,
+        // in both, with different content
+        STALE,
+        // shared by several resources in fuseki. Elasticsearch holds whichever was indexed last, so its content isn't
+        // compared
+        DUPLICATE
+    }
+
+    /**
+     * Handles each resource which differs
+     */
+    public interface DiffHandler {
+        void handle(Status status, String id);
+    }
+
+    public static class Summary {
+        public int fusekiResources;
+        public int esResources;
+        public int missing;
+        public int extra;
+        public int stale;
+        public int duplicate;
+
+        public int getDifferences() {
+            return missing + extra + stale + duplicate;
+        }
+    }
+
+    /**
+     * @param esClient
+     * @param tempDirectory where the sorted runs are spilled
+     */
+    public FusekiToESDiff(Client esClient, File tempDirectory) {
+        this.esClient = esClient;
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * @param pageSize number of resources fetched from fuseki in each query
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param maxInMemory maximum number of resources per store held in memory while sorting
+     */
+    public void setMaxInMemory(int maxInMemory) {
+        this.maxInMemory = maxInMemory;
+    }
+
+    /**
+     * Compare the resources returned by the queryBuilder with the expedition's documents
+     *
+     * @param projectId
+     * @param expeditionCode
+     * @param queryBuilder   query of the expedition's dataset, or null if the expedition has no dataset
+     * @param uniqueKey      column identifying a resource within the expedition
+     * @param handler        called with the id of each resource which differs, in id order
+     * @return
+     */
+    public Summary diff(int projectId, String expeditionCode, FimsQueryBuilder queryBuilder, String uniqueKey,
+                        DiffHandler handler) {
+        Summary summary = new Summary();
+
+        try (ExternalSorter fusekiSorter = new ExternalSorter(maxInMemory, tempDirectory);
+             ExternalSorter esSorter = new ExternalSorter(maxInMemory, tempDirectory)) {
+            MessageDigest digest = getDigest();
+
+            if (queryBuilder != null) {
+                summary.fusekiResources = queryBuilder.forEachPage(pageSize, page -> {
+                    for (JsonNode resource : page) {
+                        String id = FusekiBulkIndexer.getId(expeditionCode, (ObjectNode) resource, uniqueKey);
+                        if (id == null) {
+                            logger.warn("resource without a {} in expedition {}", uniqueKey, expeditionCode);
+                            continue;
+                        }
+                        fusekiSorter.add(id, hash(digest, resource));
+                    }
+                });
+            }
+
+            summary.esResources = readDocuments(String.valueOf(projectId), expeditionCode, esSorter, digest);
+
+            merge(fusekiSorter.sorted(), esSorter.sorted(), summary, handler);
+        }
+
+        logger.info("expedition {}: {} missing, {} extra, {} stale and {} duplicate resources", expeditionCode,
+                summary.missing, summary.extra, summary.stale, summary.duplicate);
+        return summary;
+    }
+
+    /**
+     * Add the id and content hash of each of the expedition's documents to the sorter
+     *
+     * @return the number of documents
+     */
+    private int readDocuments(String index, String expeditionCode, ExternalSorter sorter, MessageDigest digest) {
+        SearchResponse response = esClient.prepareSearch(index)
+                .setTypes(ElasticSearchIndexer.TYPE)
+                .setQuery(QueryBuilders.termQuery("expedition.expeditionCode.keyword", expeditionCode))
+                .setSize(SCROLL_SIZE)
+                .setScroll(SCROLL_KEEP_ALIVE)
+                .get();
+
+        int documents = 0;
+        try {
+            while (response.getHits().getHits().length > 0) {
+                for (SearchHit hit : response.getHits().getHits()) {
+                    ObjectNode source = (ObjectNode) mapper.readTree(hit.getSourceAsString());
+                    source.remove(EXPEDITION_FIELD);
+                    sorter.add(hit.getId(), hash(digest, source));
+                    documents++;
+                }
+
+                response = esClient.prepareSearchScroll(response.getScrollId())
+                        .setScroll(SCROLL_KEEP_ALIVE)
+                        .get();
+            }
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        } finally {
+            esClient.prepareClearScroll().addScrollId(response.getScrollId()).get();
+        }
+        return documents;
+    }
+
+    /**
+     * Walk both sorted streams together, reporting the ids found in only one of them, with different hashes, or
+     * shared by several fuseki resources
+     */
+    private static void merge(Iterator<ExternalSorter.Entry> fusekiEntries, Iterator<ExternalSorter.Entry> esEntries,
+                              Summary summary, DiffHandler handler) {
+        PeekingIterator<ExternalSorter.Entry> fuseki = Iterators.peekingIterator(fusekiEntries);
+        PeekingIterator<ExternalSorter.Entry> es = Iterators.peekingIterator(esEntries);
+
+        while (fuseki.hasNext() || es.hasNext()) {
+            int c = !fuseki.hasNext() ? 1 : !es.hasNext() ? -1 : fuseki.peek().key.compareTo(es.peek().key);
+            ExternalSorter.Entry f = c <= 0 ? fuseki.next() : null;
+            ExternalSorter.Entry e = c >= 0 ? es.next() : null;
+            String key = f != null ? f.key : e.key;
+
+            // an id can only be indexed once, so when several fuseki resources share an id, elasticsearch holds
+            // whichever copy was indexed last, and there is no single copy to compare it with
+            boolean duplicate = skipCopies(fuseki, key) > 0;
+            skipCopies(es, key);
+
+            if (duplicate) {
+                summary.duplicate++;
+                handler.handle(Status.DUPLICATE, key);
+            }
+
+            if (e == null) {
+                summary.missing++;
+                handler.handle(Status.MISSING, key);
+            } else if (f == null) {
+                summary.extra++;
+                handler.handle(Status.EXTRA, key);
+            } else if (!duplicate && !f.hash.equals(e.hash)) {
+                summary.stale++;
+                handler.handle(Status.STALE, key);
+            }
+        }
+    }
+
+    /**
+     * Skip the following entries with this key
+     *
+     * @return the number of entries skipped
+     */
+    private static int skipCopies(PeekingIterator<ExternalSorter.Entry> it, String key) {
+        int copies = 0;
+        while (it.hasNext() && it.peek().key.equals(key)) {
+            it.next();
+            copies++;
+        }
+        return copies;
+    }
+
+    /**
+     * Hash the resource with its fields in a canonical order, so the same content from either store hashes the same
+     */
+    private String hash(MessageDigest digest, JsonNode resource) {
+        try {
+            Object canonical = mapper.treeToValue(resource, Object.class);
+            return DatatypeConverter.printHexBinary(digest.digest(mapper.writeValueAsBytes(canonical)));
+        } catch (IOException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package biocode.fims.fuseki.query.elasticSearch;
+
+import biocode.fims.fuseki.ExpeditionStateFile;
+
+import java.io.File;
+
+/**
+ * Records the dataset graph last indexed for each expedition, persisted to a properties file, so that later runs can
+ * skip expeditions whose latest dataset hasn't changed. Dataset graphs are never modified once uploaded, so an
+ * expedition only needs to be reindexed when it has a new latest graph.
+ * <p>
+ * The file is rewritten atomically after every change, so an interrupted run keeps the expeditions it finished.
+ */
+public class IndexingState {
+    private final ExpeditionStateFile indexedGraphs;
+
+    /**
+     * @param stateFile loaded if it exists, otherwise it is created once the first expedition is indexed
+     */
+    public IndexingState(File stateFile) {
+        this.indexedGraphs = new ExpeditionStateFile(stateFile,
+                "dataset graph last indexed per projectId/expeditionCode");
+    }
+
+    /**
+     * @param projectId
+     * @param expeditionCode
+     * @param graph          the expedition's latest dataset graph
+     * @return true if this graph is the last one indexed for the expedition
+     */
+    public boolean isIndexed(int projectId, String expeditionCode, String graph) {
+        return graph != null && graph.equals(indexedGraphs.get(projectId, expeditionCode));
+    }
+
+    /**
+     * Record that the graph has been indexed for the expedition
+     *
+     * @param projectId
+     * @param expeditionCode
+     * @param graph
+     */
+    public void markIndexed(int projectId, String expeditionCode, String graph) {
+        if (graph == null) {
+            return;
+        }
+        indexedGraphs.set(projectId, expeditionCode, graph);
+    }
+}
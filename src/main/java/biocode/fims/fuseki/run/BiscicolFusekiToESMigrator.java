@@ -2,13 +2,17 @@ package biocode.fims.fuseki.run;
 
 import biocode.fims.application.config.FimsProperties;
 import biocode.fims.config.ConfigurationFileEsMapper;
-import biocode.fims.config.ConfigurationFileFetcher;
 import biocode.fims.digester.Mapping;
 import biocode.fims.elasticSearch.ElasticSearchIndexer;
 import biocode.fims.entities.Expedition;
 import biocode.fims.entities.Project;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
 import biocode.fims.fileManagers.fimsMetadata.FimsMetadataFileManager;
+import biocode.fims.fuseki.ProjectConfigCache;
 import biocode.fims.fuseki.fileManagers.fimsMetadata.FusekiFimsMetadataPersistenceManager;
+import biocode.fims.fuseki.query.FimsQueryBuilder;
+import biocode.fims.fuseki.query.elasticSearch.FusekiBulkIndexer;
+import biocode.fims.fuseki.query.elasticSearch.IndexingState;
 import biocode.fims.run.ProcessController;
 import biocode.fims.service.BcidService;
 import biocode.fims.service.ExpeditionService;
@@ -43,6 +47,12 @@ public class BiscicolFusekiToESMigrator {
     private Map<Integer, LinkedHashMap<String, Integer>> totalResources = new LinkedHashMap<>();
     private MessageSource messageSource;
     private final FimsProperties props;
+    private boolean streaming = false;
+    private IndexingState indexingState;
+    private MigrationCheckpoint checkpoint;
+    private boolean retryFailedOnly = false;
+    private int shardIndex = 0;
+    private int shardCount = 1;
 
     BiscicolFusekiToESMigrator(ExpeditionService expeditionService, BcidService bcidService, ProjectService projectService,
                                Client esClient, MessageSource messageSource, FimsProperties props) {
@@ -54,6 +64,75 @@ public class BiscicolFusekiToESMigrator {
         this.props = props;
     }
 
+    /**
+     * Page through each expedition's dataset and send it to elasticsearch in bulk requests as it is read, instead of
+     * fetching the whole dataset before indexing it. See {@link FusekiBulkIndexer}
+     *
+     * @param streaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Only migrate expeditions whose latest dataset graph differs from the one recorded in the indexingState, and
+     * record each expedition's graph once it is migrated
+     *
+     * @param indexingState
+     */
+    public void setIndexingState(IndexingState indexingState) {
+        this.indexingState = indexingState;
+    }
+
+    /**
+     * Record each completed or failed (project, expedition) in the checkpointFile, and skip the expeditions it
+     * records as completed. Re-running with the same checkpointFile resumes an interrupted migration
+     *
+     * @param checkpointFile
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpoint = new MigrationCheckpoint(checkpointFile);
+    }
+
+    /**
+     * Only migrate the expeditions recorded as failed in the checkpoint file
+     *
+     * @param retryFailedOnly
+     */
+    public void setRetryFailedOnly(boolean retryFailedOnly) {
+        this.retryFailedOnly = retryFailedOnly;
+    }
+
+    /**
+     * Only migrate the projects where projectId % shardCount == shardIndex, so a migration can be split across
+     * several processes. Each shard should use its own checkpoint file
+     *
+     * @param shardIndex
+     * @param shardCount
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    private void markCompleted(int projectId, String expeditionCode, int resources) {
+        if (checkpoint != null) {
+            checkpoint.markCompleted(projectId, expeditionCode, resources);
+        }
+    }
+
+    private void markFailed(int projectId, String expeditionCode) {
+        if (checkpoint != null) {
+            checkpoint.markFailed(projectId, expeditionCode);
+        }
+    }
+
+    private void markIndexed(int projectId, String expeditionCode, String graph) {
+        if (indexingState != null) {
+            indexingState.markIndexed(projectId, expeditionCode, graph);
+        }
+    }
+
     /**
      * create the index and update the mapping
      *
@@ -69,18 +148,30 @@ public class BiscicolFusekiToESMigrator {
     }
 
     public void start(String outputDirectory, Integer projectId) {
+        if (retryFailedOnly && checkpoint == null) {
+            throw new FimsRuntimeException("retrying failed expeditions requires a checkpoint file", 500);
+        }
+
         List<Project> projectList = projectService.getProjects(SettingsManager.getInstance().retrieveValue("appRoot"));
 
         for (Project project : projectList) {
+            if (Math.floorMod(project.getProjectId(), shardCount) != shardIndex) {
+                continue;
+            }
+            if (retryFailedOnly && !checkpoint.hasFailures(project.getProjectId())) {
+                continue;
+            }
+
             if (projectId == null || (projectId != null && project.getProjectId() == projectId)) {
                 try {
                     System.out.println("updating project: " + project.getProjectTitle());
-                    File configFile = new ConfigurationFileFetcher(project.getProjectId(), outputDirectory, false).getOutputFile();
+                    File configFile = ProjectConfigCache.getInstance().getConfigFile(project.getProjectId());
 
                     createIndex(project.getProjectId(), configFile);
-                    migrate(project.getProjectId(), outputDirectory, configFile);
+                    migrate(project.getProjectId(), outputDirectory);
                 } catch (Exception e) {
-                    failedIndexes.computeIfAbsent(project.getProjectId(), k -> Collections.singletonList("all"));
+                    failedIndexes.computeIfAbsent(project.getProjectId(), k -> Collections.singletonList(MigrationCheckpoint.ALL_EXPEDITIONS));
+                    markFailed(project.getProjectId(), MigrationCheckpoint.ALL_EXPEDITIONS);
                     e.printStackTrace();
                 }
             }
@@ -94,11 +185,10 @@ public class BiscicolFusekiToESMigrator {
         MapUtils.debugPrint(System.out, "ProjectId, total_resources_indexed MAP:", totalResources);
     }
 
-    private void migrate(int projectId, String outputDirectory, File configFile) {
+    private void migrate(int projectId, String outputDirectory) {
         Project project = projectService.getProjectWithExpeditions(projectId);
 
-        Mapping mapping = new Mapping();
-        mapping.addMappingRules(configFile);
+        Mapping mapping = ProjectConfigCache.getInstance().getMapping(projectId);
 
         int totalResource = 0;
 
@@ -109,8 +199,51 @@ public class BiscicolFusekiToESMigrator {
 
         // we need to fetch each Expedition individually as the SheetUniqueKey is only unique on the Expedition level
         for (Expedition expedition : expeditions) {
+            if (checkpoint != null) {
+                if (checkpoint.isCompleted(projectId, expedition.getExpeditionCode())) {
+                    // restore the totals of the previous run, so the final report covers the whole migration
+                    int resources = checkpoint.getResources(projectId, expedition.getExpeditionCode());
+                    totalResources.computeIfAbsent(projectId, k -> new LinkedHashMap<>());
+                    totalResources.get(projectId).put(expedition.getExpeditionCode(), resources);
+                    totalResource += resources;
+                    continue;
+                }
+                if (retryFailedOnly && !checkpoint.isFailed(projectId, expedition.getExpeditionCode())) {
+                    continue;
+                }
+            }
+
             try {
                 FusekiFimsMetadataPersistenceManager persistenceManager = new FusekiFimsMetadataPersistenceManager(expeditionService, bcidService, props);
+                String graph = persistenceManager.getLatestGraph(projectId, expedition.getExpeditionCode());
+
+                if (indexingState != null && indexingState.isIndexed(projectId, expedition.getExpeditionCode(), graph)) {
+                    System.out.println("skipping expedition: " + expedition.getExpeditionCode() + ", dataset unchanged since the last run");
+                    continue;
+                }
+
+                if (streaming) {
+                    System.out.println("updating expedition: " + expedition.getExpeditionCode());
+
+                    int resources = 0;
+                    if (graph != null) {
+                        FimsQueryBuilder q = new FimsQueryBuilder(mapping, new String[]{graph}, outputDirectory, props.naan());
+                        resources = new FusekiBulkIndexer(esClient).index(projectId, expedition.getExpeditionCode(), q,
+                                mapping.getDefaultSheetUniqueKey());
+                    }
+                    markIndexed(projectId, expedition.getExpeditionCode(), graph);
+                    markCompleted(projectId, expedition.getExpeditionCode(), resources);
+
+                    if (resources > 0) {
+                        totalResources.computeIfAbsent(projectId, k -> new LinkedHashMap<>());
+                        totalResources.get(projectId).put(expedition.getExpeditionCode(), resources);
+                        totalResource += resources;
+                    } else {
+                        System.out.println("\nskipping as dataset returned 0 resources from fuseki");
+                    }
+                    continue;
+                }
+
                 FimsMetadataFileManager fimsMetadataFileManager = new FimsMetadataFileManager(
                         persistenceManager, props, expeditionService, bcidService, messageSource);
 
@@ -134,12 +267,15 @@ public class BiscicolFusekiToESMigrator {
                             expedition.getExpeditionCode(),
                             dataset
                     );
+                    markIndexed(projectId, expedition.getExpeditionCode(), graph);
+                    markCompleted(projectId, expedition.getExpeditionCode(), dataset.size());
 
                     totalResources.computeIfAbsent(projectId, k -> new LinkedHashMap<>());
                     totalResources.get(projectId).put(expedition.getExpeditionCode(), dataset.size());
                     totalResource += dataset.size();
                 } else {
                     System.out.println("\nskipping as dataset returned 0 resources from fuseki");
+                    markCompleted(projectId, expedition.getExpeditionCode(), 0);
                 }
             } catch (Exception e) {
                 if (!failedIndexes.containsKey(projectId)) {
@@ -147,9 +283,15 @@ public class BiscicolFusekiToESMigrator {
                 }
 
                 failedIndexes.get(projectId).add(expedition.getExpeditionCode());
+                markFailed(projectId, expedition.getExpeditionCode());
                 e.printStackTrace();
             }
         }
+
+        // any project level failure has now been replaced by the status of each expedition
+        if (checkpoint != null) {
+            checkpoint.clearProjectFailure(projectId);
+        }
         System.out.println("Indexed " + totalResource + " resources");
         totalResources.computeIfAbsent(projectId, k -> new LinkedHashMap<>());
         totalResources.get(projectId).put("project_total", totalResource);
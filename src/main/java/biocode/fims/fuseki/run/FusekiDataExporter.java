@@ -2,11 +2,12 @@ package biocode.fims.fuseki.run;
 
 import biocode.fims.application.config.FimsAppConfig;
 import biocode.fims.application.config.FimsProperties;
-import biocode.fims.config.ConfigurationFileFetcher;
 import biocode.fims.digester.Mapping;
 import biocode.fims.entities.BcidTmp;
 import biocode.fims.entities.Expedition;
 import biocode.fims.entities.Project;
+import biocode.fims.fimsExceptions.FimsRuntimeException;
+import biocode.fims.fuseki.ProjectConfigCache;
 import biocode.fims.fuseki.query.FimsQueryBuilder;
 import biocode.fims.run.StandardInputter;
 import biocode.fims.service.BcidService;
@@ -20,8 +21,8 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 
 import java.io.File;
-import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Tmp script to help with exporting fuseki data to file system
@@ -31,8 +32,11 @@ import java.util.*;
 public class FusekiDataExporter {
     private ProjectService projectService;
     private final int naan;
+    private static final int DEFAULT_THREADS = 4;
+
     private BcidService bcidService;
-    private Map<Integer, List<String>> failedExports = new LinkedHashMap<>();
+    private Map<Integer, List<String>> failedExports = Collections.synchronizedMap(new LinkedHashMap<>());
+    private int threads = DEFAULT_THREADS;
 
     FusekiDataExporter(BcidService bcidService, ProjectService projectService, int naan) {
         this.bcidService = bcidService;
@@ -40,37 +44,60 @@ public class FusekiDataExporter {
         this.naan = naan;
     }
 
+    /**
+     * @param threads number of bcids exported at the same time
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
     public void start(String outputDirectory, String projectUrl, Integer projectId) {
         List<Project> projectList = projectService.getProjects(projectUrl);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
 
-        for (Project project : projectList) {
-            if (projectId == null || project.getProjectId() == projectId) {
-                try {
-                    System.out.println("exporting project: " + project.getProjectTitle());
-                    File configFile = new ConfigurationFileFetcher(project.getProjectId(), System.getProperty("java.io.tmpdir"), false).getOutputFile();
-
-                    export(project.getProjectId(), outputDirectory, configFile);
-                } catch (Exception e) {
-                    failedExports.computeIfAbsent(project.getProjectId(), k -> Collections.singletonList("all"));
-                    e.printStackTrace();
+        try {
+            for (Project project : projectList) {
+                if (projectId == null || project.getProjectId() == projectId) {
+                    try {
+                        System.out.println("exporting project: " + project.getProjectTitle());
+                        futures.addAll(export(project.getProjectId(), outputDirectory, executor));
+                    } catch (Exception e) {
+                        failedExports.computeIfAbsent(project.getProjectId(), k -> Collections.singletonList("all"));
+                        e.printStackTrace();
+                    }
                 }
             }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FimsRuntimeException(500, e);
+        } catch (ExecutionException e) {
+            throw new FimsRuntimeException(500, e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
 
+        System.out.println("exported " + futures.size() + " datasets in " + (System.currentTimeMillis() - start) + " ms");
+
         if (!failedExports.isEmpty()) {
             System.out.println("Failed to export the following datasets:");
             MapUtils.debugPrint(System.out, "FAILED DATASETS:", failedExports);
         }
     }
 
-    private void export(int projectId, String outputDirectory, File configFile) {
+    /**
+     * Submit an export of each of the project's datasets to the executor
+     *
+     * @return the submitted exports
+     */
+    private List<Future<?>> export(int projectId, String outputDirectory, ExecutorService executor) {
         Project project = projectService.getProjectWithExpeditions(projectId);
-
-        Mapping mapping = new Mapping();
-        mapping.addMappingRules(configFile);
-
-        int totalResource = 0;
+        List<Future<?>> futures = new ArrayList<>();
 
         List<Expedition> expeditions = new ArrayList<>();
         expeditions.addAll(project.getExpeditions());
@@ -80,37 +107,45 @@ public class FusekiDataExporter {
         // we need to fetch each Expedition individually as the SheetUniqueKey is only unique on the Expedition level
         for (Expedition expedition : expeditions) {
             for (BcidTmp bcid : bcidService.getDatasets(projectId, expedition.getExpeditionCode())) {
-                try {
-                    // only update bcids w/o a sourceFile set and graph != null
-                    if (StringUtils.isBlank(bcid.getSourceFile()) && bcid.getGraph() != null) {
+                // only update bcids w/o a sourceFile set and graph != null
+                if (StringUtils.isBlank(bcid.getSourceFile()) && bcid.getGraph() != null) {
+                    futures.add(executor.submit(() -> exportDataset(projectId, bcid, outputDirectory)));
+                }
+            }
+        }
+        return futures;
+    }
 
-                        FimsQueryBuilder q = new FimsQueryBuilder(
-                                mapping,
-                                new String[]{bcid.getGraph()},
-                                System.getProperty("java.io.tmpdir"),
-                                naan);
+    /**
+     * Write the dataset's csv directly to its file in the outputDirectory, and update the bcid sourceFile
+     */
+    private void exportDataset(int projectId, BcidTmp bcid, String outputDirectory) {
+        try {
+            long start = System.currentTimeMillis();
 
-                        File sourceFile = new File(q.writeCSV(false));
-                        String oFilename = "fims_metadata_bcid_id_" + bcid.getBcidId() + ".csv";
-                        File outputFile = new File(outputDirectory + oFilename);
+            Mapping mapping = ProjectConfigCache.getInstance().getMapping(projectId);
 
-                        Files.copy(sourceFile.toPath(), outputFile.toPath());
+            FimsQueryBuilder q = new FimsQueryBuilder(
+                    mapping,
+                    new String[]{bcid.getGraph()},
+                    System.getProperty("java.io.tmpdir"),
+                    naan);
 
-                        // update the bcid sourceFile
-                        bcid.setSourceFile(outputFile.getName());
-                        bcidService.update(bcid);
+            String oFilename = "fims_metadata_bcid_id_" + bcid.getBcidId() + ".csv";
+            File outputFile = new File(outputDirectory, oFilename);
 
-                    }
+            int rows = q.writeCSV(outputFile, false);
 
-                } catch (Exception e) {
-                    if (!failedExports.containsKey(projectId)) {
-                        failedExports.put(projectId, new ArrayList<>());
-                    }
+            // update the bcid sourceFile
+            bcid.setSourceFile(outputFile.getName());
+            bcidService.update(bcid);
 
-                    failedExports.get(projectId).add(String.valueOf(bcid.getBcidId()));
-                    e.printStackTrace();
-                }
-            }
+            System.out.println("exported bcid " + bcid.getBcidId() + ": " + rows + " rows in " +
+                    (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            failedExports.computeIfAbsent(projectId, k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(String.valueOf(bcid.getBcidId()));
+            e.printStackTrace();
         }
     }
 
@@ -138,6 +173,7 @@ public class FusekiDataExporter {
         options.addOption("o", "output_directory", true, "The directory where we should save the exported data. Most likely the serverRoot from the props file");
         options.addOption("u", "projectUrl", true, "The url of the projects to export. This will be used to query the projects table.");
         options.addOption("p", "project", true, "project");
+        options.addOption("t", "threads", true, "Number of datasets exported at the same time. Defaults to " + DEFAULT_THREADS);
 
         // Create the commands parser and parse the command line arguments.
         try {
@@ -173,6 +209,9 @@ public class FusekiDataExporter {
             return;
         }
         FusekiDataExporter dataExporter = new FusekiDataExporter(bcidService, projectService, props.naan());
+        if (cl.hasOption("t")) {
+            dataExporter.setThreads(Integer.parseInt(cl.getOptionValue("t")));
+        }
 
         dataExporter.start(output_directory, projectUrl, projectId);
     }
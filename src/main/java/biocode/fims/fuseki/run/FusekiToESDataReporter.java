@@ -2,7 +2,6 @@ package biocode.fims.fuseki.run;
 
 import biocode.fims.application.config.FimsAppConfig;
 import biocode.fims.application.config.FimsProperties;
-import biocode.fims.config.ConfigurationFileFetcher;
 import biocode.fims.digester.Mapping;
 import biocode.fims.elasticSearch.ElasticSearchIndexer;
 import biocode.fims.elasticSearch.query.ElasticSearchQuerier;
@@ -12,7 +11,10 @@ import biocode.fims.entities.Project;
 import biocode.fims.fileManagers.fimsMetadata.FimsMetadataFileManager;
 import biocode.fims.fimsExceptions.FimsRuntimeException;
 import biocode.fims.fimsExceptions.errorCodes.FileCode;
+import biocode.fims.fuseki.ProjectConfigCache;
 import biocode.fims.fuseki.fileManagers.fimsMetadata.FusekiFimsMetadataPersistenceManager;
+import biocode.fims.fuseki.query.FimsQueryBuilder;
+import biocode.fims.fuseki.query.elasticSearch.FusekiToESDiff;
 import biocode.fims.run.ProcessController;
 import biocode.fims.service.BcidService;
 import biocode.fims.service.ExpeditionService;
@@ -35,6 +37,7 @@ import org.springframework.context.annotation.AnnotationConfigApplicationContext
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Tmp script to help with the migration from fuseki to ElasticSearch
@@ -48,10 +51,15 @@ public class FusekiToESDataReporter {
     private Client esClient;
     private ExpeditionService expeditionService;
     private BcidService bcidService;
-    private Map<Integer, List<String>> failedIndexes = new LinkedHashMap<>();
-    private Map<Integer, List<DatasetStats>> projectDatasetStats = new HashMap<>();
+    private static final int DEFAULT_THREADS = 8;
+
+    private Map<Integer, List<String>> failedIndexes = Collections.synchronizedMap(new LinkedHashMap<>());
+    private Map<Integer, List<DatasetStats>> projectDatasetStats = new ConcurrentSkipListMap<>();
     private MessageSource messageSource;
     private final FimsProperties props;
+    private boolean countOnly = false;
+    private boolean diff = false;
+    private int threads = DEFAULT_THREADS;
 
     FusekiToESDataReporter(ExpeditionService expeditionService, BcidService bcidService, ProjectService projectService,
                            Client esClient, MessageSource messageSource, FimsProperties props) {
@@ -63,16 +71,43 @@ public class FusekiToESDataReporter {
         this.props = props;
     }
 
+    /**
+     * Only count the resources in fuseki and elasticsearch, using a sparql COUNT per dataset graph and an
+     * elasticsearch count per expedition, instead of fetching every resource. Projects are counted concurrently
+     *
+     * @param countOnly
+     * @param threads   number of projects counted at the same time
+     */
+    public void setCountOnly(boolean countOnly, int threads) {
+        this.countOnly = countOnly;
+        this.threads = threads;
+    }
+
+    /**
+     * Diff the content of each resource in fuseki and elasticsearch, writing the missing, extra, stale and duplicate
+     * resources of each project to a csv file. Projects are diffed concurrently
+     *
+     * @param diff
+     * @param threads number of projects diffed at the same time
+     */
+    public void setDiff(boolean diff, int threads) {
+        this.diff = diff;
+        this.threads = threads;
+    }
+
     public void start(String outputDirectory, Integer projectId) {
+        if (countOnly || diff) {
+            startCounts(outputDirectory, projectId);
+            return;
+        }
+
         List<Project> projectList = projectService.getProjects();
 
         for (Project project : projectList) {
             if (projectId == null || project.getProjectId() == projectId) {
                 try {
                     System.out.println("updating project: " + project.getProjectTitle());
-                    File configFile = new ConfigurationFileFetcher(project.getProjectId(), outputDirectory, false).getOutputFile();
-
-                    getStats(project.getProjectId(), outputDirectory, configFile);
+                    getStats(project.getProjectId(), outputDirectory);
                 } catch (Exception e) {
                     failedIndexes.computeIfAbsent(project.getProjectId(), k -> Collections.singletonList("all"));
                     e.printStackTrace();
@@ -89,6 +124,158 @@ public class FusekiToESDataReporter {
         writeStatsToFile(outputDirectory);
     }
 
+    private void startCounts(String outputDirectory, Integer projectId) {
+        List<Project> projectList = projectService.getProjects();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
+
+        try {
+            for (Project project : projectList) {
+                if (projectId == null || project.getProjectId() == projectId) {
+                    futures.add(executor.submit(() -> {
+                        try {
+                            if (diff) {
+                                getDiffs(project.getProjectId(), outputDirectory);
+                            } else {
+                                getCounts(project.getProjectId());
+                            }
+                            System.out.println("finished project: " + project.getProjectTitle());
+                        } catch (Exception e) {
+                            failedIndexes.computeIfAbsent(project.getProjectId(), k -> Collections.singletonList("all"));
+                            e.printStackTrace();
+                        }
+                    }));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FimsRuntimeException(500, e);
+        } catch (ExecutionException e) {
+            throw new FimsRuntimeException(500, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.out.println("finished " + futures.size() + " projects in " + (System.currentTimeMillis() - start) + " ms");
+
+        if (!failedIndexes.isEmpty()) {
+            System.out.println("Failed to report the following expeditions:");
+            MapUtils.debugPrint(System.out, "FAILED REPORTS:", failedIndexes);
+        }
+
+        writeStatsToFile(outputDirectory);
+    }
+
+    /**
+     * Count the resources of each expedition's latest dataset in fuseki, and of the expedition in elasticsearch
+     */
+    private void getCounts(int projectId) {
+        Project project = projectService.getProjectWithExpeditions(projectId);
+
+        List<DatasetStats> stats = new ArrayList<>();
+        Mapping mapping = ProjectConfigCache.getInstance().getMapping(projectId);
+
+        FusekiFimsMetadataPersistenceManager persistenceManager = new FusekiFimsMetadataPersistenceManager(expeditionService, bcidService, props);
+
+        List<Expedition> expeditions = new ArrayList<>();
+        expeditions.addAll(project.getExpeditions());
+        expeditions.sort(Comparator.comparing(Expedition::getExpeditionCode).reversed());
+
+        for (Expedition expedition : expeditions) {
+            try {
+                int numberOfFusekiResources = 0;
+                String graph = persistenceManager.getLatestGraph(projectId, expedition.getExpeditionCode());
+                if (graph != null) {
+                    FimsQueryBuilder q = new FimsQueryBuilder(mapping, new String[]{graph},
+                            System.getProperty("java.io.tmpdir"), props.naan());
+                    numberOfFusekiResources = Math.toIntExact(q.countResources());
+                }
+
+                long numberOfEsResources = esClient.prepareSearch(String.valueOf(projectId))
+                        .setTypes(ElasticSearchIndexer.TYPE)
+                        .setQuery(QueryBuilders.matchQuery("expedition.expeditionCode.keyword", expedition.getExpeditionCode()))
+                        .setSize(0)
+                        .get()
+                        .getHits()
+                        .getTotalHits();
+
+                stats.add(new DatasetStats(expedition.getExpeditionCode(), numberOfFusekiResources,
+                        Math.toIntExact(numberOfEsResources)));
+            } catch (Exception e) {
+                failedIndexes.computeIfAbsent(projectId, k -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(expedition.getExpeditionCode());
+                e.printStackTrace();
+            }
+        }
+        projectDatasetStats.put(projectId, stats);
+    }
+
+    /**
+     * Diff each expedition's latest dataset in fuseki with its documents in elasticsearch, writing each resource
+     * which differs to diff_<projectId>.csv
+     */
+    private void getDiffs(int projectId, String outputDirectory) {
+        Project project = projectService.getProjectWithExpeditions(projectId);
+
+        List<DatasetStats> stats = new ArrayList<>();
+        Mapping mapping = ProjectConfigCache.getInstance().getMapping(projectId);
+
+        FusekiFimsMetadataPersistenceManager persistenceManager = new FusekiFimsMetadataPersistenceManager(expeditionService, bcidService, props);
+        FusekiToESDiff fusekiToESDiff = new FusekiToESDiff(esClient, new File(outputDirectory));
+
+        List<Expedition> expeditions = new ArrayList<>();
+        expeditions.addAll(project.getExpeditions());
+        expeditions.sort(Comparator.comparing(Expedition::getExpeditionCode).reversed());
+
+        String delimiter = ",";
+        File oFile = new File(outputDirectory, "diff_" + projectId + ".csv");
+
+        try (Writer writer = new BufferedWriter(new FileWriter(oFile))) {
+            writer.write("expeditionCode" + delimiter + "id" + delimiter + "status\n");
+
+            for (Expedition expedition : expeditions) {
+                try {
+                    String graph = persistenceManager.getLatestGraph(projectId, expedition.getExpeditionCode());
+                    FimsQueryBuilder q = null;
+                    if (graph != null) {
+                        q = new FimsQueryBuilder(mapping, new String[]{graph}, outputDirectory, props.naan());
+                    }
+
+                    FusekiToESDiff.Summary summary = fusekiToESDiff.diff(projectId, expedition.getExpeditionCode(), q,
+                            mapping.getDefaultSheetUniqueKey(), (status, id) -> {
+                                try {
+                                    StringEscapeUtils.escapeCsv(writer, expedition.getExpeditionCode());
+                                    writer.write(delimiter);
+                                    StringEscapeUtils.escapeCsv(writer, id);
+                                    writer.write(delimiter);
+                                    writer.write(status.name());
+                                    writer.write("\n");
+                                } catch (IOException e) {
+                                    throw new FimsRuntimeException(FileCode.WRITE_ERROR, 500);
+                                }
+                            });
+
+                    System.out.println("expedition " + expedition.getExpeditionCode() + ": " + summary.missing +
+                            " missing, " + summary.extra + " extra, " + summary.stale + " stale, " +
+                            summary.duplicate + " duplicate");
+                    stats.add(new DatasetStats(expedition.getExpeditionCode(), summary.fusekiResources, summary.esResources));
+                } catch (Exception e) {
+                    failedIndexes.computeIfAbsent(projectId, k -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(expedition.getExpeditionCode());
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            throw new FimsRuntimeException(FileCode.WRITE_ERROR, 500);
+        }
+        projectDatasetStats.put(projectId, stats);
+    }
+
     private void writeStatsToFile(String outputDirectory) {
         File oFile = PathManager.createUniqueFile("fusekiToEsStats.csv", outputDirectory);
         String delimiter = ",";
@@ -132,12 +319,11 @@ public class FusekiToESDataReporter {
 
     }
 
-    private void getStats(int projectId, String outputDirectory, File configFile) {
+    private void getStats(int projectId, String outputDirectory) {
         Project project = projectService.getProjectWithExpeditions(projectId);
 
         List<DatasetStats> stats = new ArrayList<>();
-        Mapping mapping = new Mapping();
-        mapping.addMappingRules(configFile);
+        Mapping mapping = ProjectConfigCache.getInstance().getMapping(projectId);
 
         List<Expedition> expeditions = new ArrayList<>();
         expeditions.addAll(project.getExpeditions());
@@ -211,6 +397,9 @@ public class FusekiToESDataReporter {
         options.addOption("h", "help", false, "print this help message and exit");
         options.addOption("o", "output_directory", true, "Output Directory");
         options.addOption("p", "project", true, "project");
+        options.addOption("c", "countOnly", false, "Only count the resources, using sparql and elasticsearch count queries");
+        options.addOption("d", "diff", false, "Diff the content of each resource, writing the missing, extra, stale and duplicate resources to diff_<projectId>.csv");
+        options.addOption("t", "threads", true, "Number of projects reported at the same time with --countOnly or --diff. Defaults to " + DEFAULT_THREADS);
 
         // Create the commands parser and parse the command line arguments.
         try {
@@ -231,6 +420,12 @@ public class FusekiToESDataReporter {
         }
 
         FusekiToESDataReporter dataReporter = new FusekiToESDataReporter(expeditionService, bcidService, projectService, esClient, messageSource, props);
+        if (cl.hasOption("c")) {
+            dataReporter.setCountOnly(true, Integer.parseInt(cl.getOptionValue("t", String.valueOf(DEFAULT_THREADS))));
+        }
+        if (cl.hasOption("d")) {
+            dataReporter.setDiff(true, Integer.parseInt(cl.getOptionValue("t", String.valueOf(DEFAULT_THREADS))));
+        }
 
         dataReporter.start(output_directory, projectId);
     }
@@ -0,0 +1,70 @@
+package biocode.fims.fuseki.run;
+
+import biocode.fims.fuseki.ExpeditionStateFile;
+
+import java.io.File;
+
+/**
+ * Durable record of the (project, expedition) units a migration has completed or failed, persisted to a properties
+ * file so that an interrupted migration can be resumed, or re-run for only the failed units.
+ * <p>
+ * The file is rewritten atomically after every unit, so a crash loses at most the unit in progress.
+ */
+class MigrationCheckpoint {
+    private static final String COMPLETED = "completed:";
+    private static final String FAILED = "failed";
+    // expedition code used for failures of a whole project
+    static final String ALL_EXPEDITIONS = "all";
+
+    private final ExpeditionStateFile units;
+
+    /**
+     * @param checkpointFile loaded if it exists, otherwise it is created once the first unit is recorded
+     */
+    MigrationCheckpoint(File checkpointFile) {
+        this.units = new ExpeditionStateFile(checkpointFile, "migration status per projectId/expeditionCode");
+    }
+
+    boolean isCompleted(int projectId, String expeditionCode) {
+        String status = units.get(projectId, expeditionCode);
+        return status != null && status.startsWith(COMPLETED);
+    }
+
+    /**
+     * @return true if the expedition, or its whole project, failed in a previous run
+     */
+    boolean isFailed(int projectId, String expeditionCode) {
+        return FAILED.equals(units.get(projectId, expeditionCode)) ||
+                FAILED.equals(units.get(projectId, ALL_EXPEDITIONS));
+    }
+
+    /**
+     * @return true if any expedition of the project, or the whole project, failed in a previous run
+     */
+    boolean hasFailures(int projectId) {
+        return units.hasValue(projectId, FAILED);
+    }
+
+    /**
+     * @return the number of resources recorded for the completed expedition
+     */
+    int getResources(int projectId, String expeditionCode) {
+        String status = units.get(projectId, expeditionCode);
+        return Integer.parseInt(status.substring(COMPLETED.length()));
+    }
+
+    void markCompleted(int projectId, String expeditionCode, int resources) {
+        units.set(projectId, expeditionCode, COMPLETED + resources);
+    }
+
+    void markFailed(int projectId, String expeditionCode) {
+        units.set(projectId, expeditionCode, FAILED);
+    }
+
+    /**
+     * Clear a whole-project failure, once the project's expeditions are being retried individually
+     */
+    void clearProjectFailure(int projectId) {
+        units.remove(projectId, ALL_EXPEDITIONS);
+    }
+}
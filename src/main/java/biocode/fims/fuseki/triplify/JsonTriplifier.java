@@ -0,0 +1,326 @@
+package biocode.fims.fuseki.triplify;
+
+import biocode.fims.digester.*;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.vocabulary.OWL;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates the triples of a dataset directly from its json rows and the {@link Mapping}, producing the same triples as
+ * the D2RQ mapping written by {@link D2RQPrinter}, without loading the dataset into sqlite and querying it back through
+ * D2RQ.
+ * <p>
+ * Entities identified by a hash column can't be triplified this way, as the hash is only computed in the sqlite
+ * database. {@link #supports(Mapping, List)} checks for these.
+ */
+class JsonTriplifier {
+    private static final Node RDF_TYPE = RDF.type.asNode();
+
+    private final Mapping mapping;
+    private final String defaultLocalURIPrefix;
+    // column -> (value -> defined_by uri)
+    private final Map<String, Map<String, String>> translationTables;
+
+    interface TripleHandler {
+        void handle(Triple triple) throws IOException;
+    }
+
+    JsonTriplifier(Mapping mapping, Validation validation, String defaultLocalURIPrefix) {
+        this.mapping = mapping;
+        this.defaultLocalURIPrefix = defaultLocalURIPrefix;
+        this.translationTables = getTranslationTables(validation);
+    }
+
+    /**
+     * @param mapping
+     * @param colNames the dataset's columns
+     * @return true if every entity can be identified from the dataset's columns
+     */
+    static boolean supports(Mapping mapping, List<String> colNames) {
+        Set<String> columns = new HashSet<>();
+        for (String colName : colNames) {
+            columns.add(normalize(colName));
+        }
+
+        for (Entity entity : mapping.getEntities()) {
+            if (entity.hasWorksheet() && !entity.getUniqueKey().contains("BNODE") &&
+                    !columns.contains(entity.getColumn())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param colNames the dataset's columns
+     * @return the property declarations, which are the same for every row
+     */
+    Set<Triple> getSchemaTriples(List<String> colNames) {
+        Set<String> columns = getColumns(colNames).keySet();
+        Set<Triple> triples = new LinkedHashSet<>();
+
+        for (Entity entity : mapping.getEntities()) {
+            if (!entity.hasWorksheet()) {
+                continue;
+            }
+
+            for (Attribute attribute : entity.getAttributes()) {
+                if (!isMapped(attribute, columns)) {
+                    continue;
+                }
+                boolean translated = translationTables.containsKey(attribute.getColumn());
+                if (!translated && !attribute.getDisplayAnnotationProperty()) {
+                    continue;
+                }
+
+                Node property = Node.createURI(attribute.getUri());
+                String definedBy = attribute.getDefined_by() != null ? attribute.getDefined_by() : attribute.getUri();
+                triples.add(Triple.create(property, RDF_TYPE, RDF.Property.asNode()));
+                triples.add(Triple.create(property, RDF_TYPE, OWL.DatatypeProperty.asNode()));
+                triples.add(Triple.create(property, Node.createURI(attribute.getIsDefinedByURIString()),
+                        Node.createURI(definedBy)));
+
+                if (translated && attribute.getDisplayAnnotationProperty()) {
+                    triples.add(Triple.create(RDFS.comment.asNode(), RDF_TYPE, RDF.Property.asNode()));
+                }
+            }
+        }
+
+        for (Relation relation : mapping.getRelations()) {
+            if (isMapped(relation)) {
+                triples.add(Triple.create(Node.createURI(relation.getPredicate()), RDF_TYPE,
+                        OWL.ObjectProperty.asNode()));
+            }
+        }
+        return triples;
+    }
+
+    /**
+     * Pass the instance triples of each row to the handler
+     *
+     * @param dataset
+     * @param colNames the dataset's columns
+     * @param handler
+     * @return the number of triples
+     */
+    long triplify(ArrayNode dataset, List<String> colNames, TripleHandler handler) throws IOException {
+        // normalized column name -> dataset field name
+        Map<String, String> columns = getColumns(colNames);
+        long count = 0;
+
+        for (JsonNode row : dataset) {
+            Map<String, Node> subjects = new HashMap<>();
+
+            for (Entity entity : mapping.getEntities()) {
+                if (!entity.hasWorksheet()) {
+                    continue;
+                }
+                Node subject = getSubject(entity, row, columns);
+                if (subject == null) {
+                    continue;
+                }
+                subjects.put(entity.getConceptAlias(), subject);
+
+                if (!entity.getConceptURI().equalsIgnoreCase(RDF.type.getURI())) {
+                    handler.handle(Triple.create(subject, RDF_TYPE, Node.createURI(entity.getConceptURI())));
+                    count++;
+                }
+
+                for (Attribute attribute : entity.getAttributes()) {
+                    count += triplifyAttribute(subject, attribute, row, columns, handler);
+                }
+            }
+
+            for (Relation relation : mapping.getRelations()) {
+                if (!isMapped(relation)) {
+                    continue;
+                }
+                Node subject = subjects.get(relation.getSubject());
+                Entity objEntity = mapping.findEntity(relation.getObject());
+                Node object = subjects.containsKey(relation.getObject()) ?
+                        subjects.get(relation.getObject()) : getSubject(objEntity, row, columns);
+
+                if (subject != null && object != null) {
+                    handler.handle(Triple.create(subject, Node.createURI(relation.getPredicate()), object));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private long triplifyAttribute(Node subject, Attribute attribute, JsonNode row, Map<String, String> columns,
+                                   TripleHandler handler) throws IOException {
+        if (!isMapped(attribute, columns.keySet())) {
+            return 0;
+        }
+        String value = getValue(row, columns, attribute.getColumn());
+        if (value.isEmpty()) {
+            return 0;
+        }
+
+        long count = 0;
+        Map<String, String> translationTable = translationTables.get(attribute.getColumn());
+
+        if (translationTable != null) {
+            // values without a translation have no uri, so aren't expressed with the attribute's property
+            String uri = translationTable.get(value);
+            if (uri != null) {
+                handler.handle(Triple.create(subject, Node.createURI(attribute.getUri()), Node.createURI(uri)));
+                count++;
+            }
+            if (attribute.getDisplayAnnotationProperty()) {
+                handler.handle(Triple.create(subject, RDFS.comment.asNode(), createLiteral(value, attribute)));
+                count++;
+            }
+        } else if (attribute.getDisplayAnnotationProperty()) {
+            handler.handle(Triple.create(subject, Node.createURI(attribute.getUri()), createLiteral(value, attribute)));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the entity's resource in the row, following the uriPattern or bNodeIdColumns of
+     * {@link D2RQPrinter}, or null if the row has no identifier for the entity. Blank nodes are labeled like D2RQ's,
+     * which isn't a legal turtle label, so they must be written with Triplifier's writeTriple
+     */
+    private Node getSubject(Entity entity, JsonNode row, Map<String, String> columns) {
+        if (entity.getUniqueKey().contains("BNODE")) {
+            StringBuilder id = new StringBuilder(getClassMap(entity));
+            for (Attribute attribute : entity.getAttributes()) {
+                id.append("@@").append(getValue(row, columns, attribute.getColumn()));
+            }
+            return Node.createAnon(new AnonId(id.toString()));
+        }
+
+        String value = getValue(row, columns, entity.getColumn());
+        if (value.isEmpty()) {
+            return null;
+        }
+
+        String identifier = String.valueOf(entity.getIdentifier());
+        if (identifier.equals("null")) {
+            identifier = defaultLocalURIPrefix + "?" + entity.getConceptAlias() + "=";
+        }
+        return Node.createURI(identifier + encode(value));
+    }
+
+    private boolean isMapped(Relation relation) {
+        Entity subjEntity = mapping.findEntity(relation.getSubject());
+        Entity objEntity = mapping.findEntity(relation.getObject());
+        return subjEntity != null && subjEntity.hasWorksheet() && objEntity != null;
+    }
+
+    private static boolean isMapped(Attribute attribute, Set<String> columns) {
+        return columns.contains(attribute.getColumn()) && !attribute.getColumn().contains(",");
+    }
+
+    private static Node createLiteral(String value, Attribute attribute) {
+        String datatype = attribute.getDatatype() == null ? null : attribute.getDatatype().toString();
+        if (datatype == null || datatype.isEmpty()) {
+            return Node.createLiteral(value);
+        }
+
+        RDFDatatype xsdType = TypeMapper.getInstance().getSafeTypeByName(XSDDatatype.XSD + "#" + datatype.toLowerCase());
+        return Node.createLiteral(value, null, xsdType);
+    }
+
+    private static String getValue(JsonNode row, Map<String, String> columns, String column) {
+        // BNODE columns do not actually have BNODE on the end
+        String field = columns.get(column.split("BNODE")[0]);
+        JsonNode value = field == null ? null : row.get(field);
+        return value == null || value.isNull() ? "" : value.asText();
+    }
+
+    private static Map<String, String> getColumns(List<String> colNames) {
+        Map<String, String> columns = new HashMap<>();
+        for (String colName : colNames) {
+            columns.put(normalize(colName), colName);
+        }
+        return columns;
+    }
+
+    /**
+     * Normalize the column name to how it appears in sqlite, which is how the Mapping refers to it
+     */
+    private static String normalize(String colName) {
+        return colName.replace(" ", "_").replace("/", "");
+    }
+
+    private static String getClassMap(Entity entity) {
+        return entity.getWorksheet() + "_" + entity.getUniqueKey() + "_" + entity.getConceptAlias();
+    }
+
+    /**
+     * Percent-encode the characters which aren't allowed in an IRI, as D2RQ does for uriPattern values
+     */
+    private static String encode(String value) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // non-ascii characters are allowed in an IRI
+            if (c <= 0x20 || c == 0x7f || "<>\"{}|\\^`%".indexOf(c) >= 0) {
+                for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8)) {
+                    sb.append('%').append(String.format("%02X", b & 0xff));
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Getting a translation table looks up values in a list that have defined_by in a validation list element, so
+     * the actual values can be translated to the defined_by values. See D2RQPrinter.getTranslationTable
+     */
+    private static Map<String, Map<String, String>> getTranslationTables(Validation validation) {
+        Map<String, Map<String, String>> tables = new HashMap<>();
+        if (validation == null) {
+            return tables;
+        }
+
+        for (Rule r : validation.getWorksheets().getFirst().getRules()) {
+            if (tables.containsKey(r.getColumn()) || !(r.getType().equals("controlledVocabulary") ||
+                    r.getType().equals("checkInXMLFields"))) {
+                continue;
+            }
+
+            biocode.fims.digester.List list = validation.findList(r.getList());
+            if (list == null) {
+                continue;
+            }
+
+            Map<String, String> table = new HashMap<>();
+            for (Field f : list.getFields()) {
+                if (f.getDefined_by() != null) {
+                    table.put(f.getValue(), f.getDefined_by());
+                }
+            }
+
+            // only use the translationTable if the list fields contain a defined_by
+            if (!table.isEmpty()) {
+                tables.put(r.getColumn(), table);
+            }
+        }
+        return tables;
+    }
+}
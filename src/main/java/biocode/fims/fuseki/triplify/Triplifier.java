@@ -10,12 +10,20 @@ import biocode.fims.settings.Connection;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Lists;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.ontology.OntModelSpec;
 import com.hp.hpl.jena.query.*;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
 import com.hp.hpl.jena.util.FileManager;
 import com.hp.hpl.jena.util.FileUtils;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.OWL;
+import com.hp.hpl.jena.vocabulary.RDF;
 import de.fuberlin.wiwiss.d2rq.jena.ModelD2RQ;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
@@ -23,9 +31,16 @@ import org.slf4j.LoggerFactory;
 import biocode.fims.reader.plugins.TabularDataReader;
 import biocode.fims.settings.*;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Triplify source file, using code adapted from the BiSciCol Triplifier
@@ -43,6 +58,9 @@ public class Triplifier {
 
     public static String defaultLocalURIPrefix = "test:";
     private boolean overWriteOutputFile = false;
+    // write the property declarations to schemaModel instead of the triple output
+    private boolean separateSchema = false;
+    private Model schemaModel;
     static String outputFormat = "TURTLE";
 
 
@@ -61,6 +79,14 @@ public class Triplifier {
 
     private static Logger logger = LoggerFactory.getLogger(Triplifier.class);
 
+    private static final ThreadLocal<MessageDigest> sha1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new FimsRuntimeException(500, e);
+        }
+    });
+
     /**
      * triplify dataset on the tabularDataReader, writing output to the specified outputFolder and filenamePrefix
      *
@@ -153,6 +179,24 @@ public class Triplifier {
         return tripleOutputFile;
     }
 
+    /**
+     * Leave the schema triples, those describing the properties (rdf:type owl:DatatypeProperty, rdfs:isDefinedBy,
+     * rdf:type owl:ObjectProperty, ...), out of the triple output and collect them in the schema model instead. They
+     * are the same for every dataset of a project, so they can be stored once in a shared graph
+     *
+     * @param separateSchema
+     */
+    public void setSeparateSchema(boolean separateSchema) {
+        this.separateSchema = separateSchema;
+    }
+
+    /**
+     * @return the schema triples of the last run, if setSeparateSchema(true) was called
+     */
+    public Model getSchemaModel() {
+        return schemaModel;
+    }
+
     /**
      * Return triples
      *
@@ -246,6 +290,188 @@ public class Triplifier {
         getTriples(mappingFilepath);
     }
 
+    /**
+     * Run the triplifier, writing the triples as turtle directly to the writer as D2RQ produces them, instead
+     * of writing and post-processing a triple file. The rdf:Property declarations removed by
+     * {@link #cleanPropertyExpressions(File)} are skipped as they are written, and the prefixes and imports are
+     * written first. Only the D2RQ mapping file is written to the outputFolder.
+     *
+     * @param sqlLiteFile
+     * @param colNames
+     * @param writer
+     * @throws IOException
+     */
+    public void stream(File sqlLiteFile, List<String> colNames, Writer writer) throws IOException {
+        String status = "\nConverting Data Format ...";
+        processController.appendStatus(status + "<br>");
+
+        Connection connection = new Connection(sqlLiteFile);
+        String mappingFilepath = getMapping(connection, colNames);
+
+        model = new ModelD2RQ(
+                FileUtils.toURL(mappingFilepath),
+                FileUtils.langN3,
+                defaultLocalURIPrefix);
+        Graph graph = model.getGraph();
+
+        // properties declared as owl:ObjectProperty, whose rdf:Property declaration is redundant
+        Set<Node> objectProperties = findSubjects(graph, OWL.ObjectProperty.asNode());
+        Set<Node> properties = separateSchema ? findDeclaredProperties(graph) : Collections.<Node>emptySet();
+        if (separateSchema) {
+            schemaModel = ModelFactory.createDefaultModel();
+        }
+
+        writer.write(prefixes);
+        writer.write(imports);
+
+        long count = 0;
+        ExtendedIterator<Triple> tripleIt = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (tripleIt.hasNext()) {
+                Triple triple = tripleIt.next();
+                if (triple.getPredicate().equals(RDF.type.asNode()) && triple.getObject().equals(RDF.Property.asNode()) &&
+                        objectProperties.contains(triple.getSubject())) {
+                    continue;
+                }
+                if (properties.contains(triple.getSubject())) {
+                    schemaModel.getGraph().add(triple);
+                    continue;
+                }
+
+                writeTriple(writer, triple);
+                count++;
+            }
+        } finally {
+            tripleIt.close();
+        }
+
+        if (count == 0)
+            throw new FimsRuntimeException("No triples to write!", 500);
+
+        writer.flush();
+    }
+
+    /**
+     * @param dataset
+     * @return true if the dataset can be triplified from memory with {@link #stream(ArrayNode, Writer)}
+     */
+    public boolean canStream(ArrayNode dataset) {
+        return dataset.size() > 0 &&
+                JsonTriplifier.supports(processController.getMapping(), Lists.newArrayList(dataset.get(0).fieldNames()));
+    }
+
+    /**
+     * Run the triplifier on the in memory dataset, writing the triples as turtle directly to the writer. The triples
+     * are generated from the dataset rows and the Mapping, instead of loading the dataset into sqlite and
+     * querying it with D2RQ, so no files are written. Check {@link #canStream(ArrayNode)} first
+     *
+     * @param dataset
+     * @param writer
+     * @throws IOException
+     */
+    public void stream(ArrayNode dataset, Writer writer) throws IOException {
+        String status = "\nConverting Data Format ...";
+        processController.appendStatus(status + "<br>");
+
+        List<String> colNames = Lists.newArrayList(dataset.get(0).fieldNames());
+        JsonTriplifier jsonTriplifier = new JsonTriplifier(processController.getMapping(),
+                processController.getValidation(), defaultLocalURIPrefix);
+
+        writer.write(prefixes);
+        writer.write(imports);
+
+        Set<Triple> schemaTriples = jsonTriplifier.getSchemaTriples(colNames);
+        if (separateSchema) {
+            schemaModel = ModelFactory.createDefaultModel();
+        }
+        for (Triple triple : schemaTriples) {
+            if (separateSchema) {
+                schemaModel.getGraph().add(triple);
+            } else {
+                writeTriple(writer, triple);
+            }
+        }
+
+        long count = jsonTriplifier.triplify(dataset, colNames, triple -> writeTriple(writer, triple));
+
+        if (count == 0)
+            throw new FimsRuntimeException("No triples to write!", 500);
+
+        writer.flush();
+    }
+
+    /**
+     * Write the triple as a single N-Triples line, which is also valid turtle and SPARQL INSERT DATA. Blank nodes are
+     * labeled as by {@link #formatNode(Node)}
+     */
+    public static void writeTriple(Writer writer, Triple triple) throws IOException {
+        writer.write(formatNode(triple.getSubject()));
+        writer.write(" ");
+        writer.write(formatNode(triple.getPredicate()));
+        writer.write(" ");
+        writer.write(formatNode(triple.getObject()));
+        writer.write(" .\n");
+    }
+
+    /**
+     * Blank node labels from D2RQ and JsonTriplifier are the class map joined with the row's values by "@@", which
+     * isn't a legal turtle label, so blank nodes are written as _:b followed by the SHA-1 of their label
+     */
+    public static String formatNode(Node node) {
+        if (node.isBlank()) {
+            byte[] label = node.getBlankNodeLabel().getBytes(StandardCharsets.UTF_8);
+            return "_:b" + DatatypeConverter.printHexBinary(sha1.get().digest(label));
+        }
+        return FmtUtils.stringForNode(node, (PrefixMapping) null);
+    }
+
+    /**
+     * @return the subjects of all rdf:type type triples in the graph
+     */
+    private static Set<Node> findSubjects(Graph graph, Node type) {
+        Set<Node> subjects = new HashSet<Node>();
+        ExtendedIterator<Triple> it = graph.find(Node.ANY, RDF.type.asNode(), type);
+        try {
+            while (it.hasNext()) {
+                subjects.add(it.next().getSubject());
+            }
+        } finally {
+            it.close();
+        }
+        return subjects;
+    }
+
+    /**
+     * @return all properties declared in the graph. The triples describing these are the schema triples, as
+     * opposed to the instance triples
+     */
+    private static Set<Node> findDeclaredProperties(Graph graph) {
+        Set<Node> properties = findSubjects(graph, RDF.Property.asNode());
+        properties.addAll(findSubjects(graph, OWL.DatatypeProperty.asNode()));
+        properties.addAll(findSubjects(graph, OWL.ObjectProperty.asNode()));
+        return properties;
+    }
+
+    /**
+     * Move the schema triples of the model to a new model
+     *
+     * @param model
+     * @return the schema triples
+     */
+    private static Model extractSchema(Model model) {
+        Graph graph = model.getGraph();
+        Model schema = ModelFactory.createDefaultModel();
+
+        for (Node property : findDeclaredProperties(graph)) {
+            List<Triple> triples = graph.find(property, Node.ANY, Node.ANY).toList();
+            for (Triple triple : triples) {
+                schema.getGraph().add(triple);
+                graph.delete(triple);
+            }
+        }
+        return schema;
+    }
+
     /**
      * D2RQ assumes all properties to be  rdf:type rdf:Property, even when they
      * can be more formally declared as owl:ObjectProperty.  The work-around is to re-write the
@@ -353,6 +579,10 @@ public class Triplifier {
         // read the input langN3 file
         model.read(in, "", FileUtils.langN3);
 
+        if (separateSchema) {
+            schemaModel = extractSchema(model);
+        }
+
         // write it to standard out
         FileOutputStream fos = new FileOutputStream(tempFile);
 
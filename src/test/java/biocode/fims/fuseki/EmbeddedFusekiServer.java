@@ -0,0 +1,393 @@
+package biocode.fims.fuseki;
+
+import com.hp.hpl.jena.query.*;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.update.GraphStoreFactory;
+import com.hp.hpl.jena.update.UpdateAction;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for a Fuseki server, for testing and benchmarking the uploads and queries in this module without
+ * a live Fuseki. It is only on the test classpath, so it doesn't ship in the triplifier jar. It serves a single TDB
+ * dataset, either in memory or in a directory, with the endpoints used by {@link Uploader} and
+ * {@link biocode.fims.fuseki.query.FimsQueryBuilder}:
+ * <p>
+ * /{dataset}/data?graph={uri}  graph store protocol POST, adding the triples in the request body to the graph
+ * /{dataset}/query             sparql query, as a GET or form POST
+ * /{dataset}/update            sparql update, as a form POST
+ * <p>
+ * A fixed latency, plus an optional random jitter, can be added to every request to simulate a remote server.
+ */
+public class EmbeddedFusekiServer {
+    private static final int DEFAULT_PORT = 3030;
+    private static final String DEFAULT_DATASET_NAME = "ds";
+    private static final int DEFAULT_THREADS = 20;
+
+    private static Logger logger = LoggerFactory.getLogger(EmbeddedFusekiServer.class);
+
+    private int port;
+    private final String datasetName;
+    private final Dataset dataset;
+    private final Random random = new Random();
+    private HttpServer server;
+    private ExecutorService executor;
+    private int latencyMillis = 0;
+    private int jitterMillis = 0;
+
+    /**
+     * @param port        0 to listen on any free port, which {@link #getTarget()} returns once started
+     * @param datasetName the name of the dataset in the endpoint urls
+     * @param dataset
+     */
+    public EmbeddedFusekiServer(int port, String datasetName, Dataset dataset) {
+        this.port = port;
+        this.datasetName = datasetName;
+        this.dataset = dataset;
+    }
+
+    /**
+     * @param port 0 to listen on any free port
+     * @return a server with an empty in-memory dataset named "ds"
+     */
+    public static EmbeddedFusekiServer inMemory(int port) {
+        return new EmbeddedFusekiServer(port, DEFAULT_DATASET_NAME, TDBFactory.createDataset());
+    }
+
+    /**
+     * Add latency to every request
+     *
+     * @param latencyMillis fixed delay before each request is handled
+     * @param jitterMillis  maximum random delay added to the fixed delay
+     */
+    public void setLatency(int latencyMillis, int jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        port = server.getAddress().getPort();
+        server.createContext("/" + datasetName + "/data", new DelayedHandler(this::handleData));
+        server.createContext("/" + datasetName + "/query", new DelayedHandler(this::handleQuery));
+        server.createContext("/" + datasetName + "/update", new DelayedHandler(this::handleUpdate));
+
+        executor = Executors.newFixedThreadPool(DEFAULT_THREADS);
+        server.setExecutor(executor);
+        server.start();
+
+        logger.info("started local sparql server at {}", getQueryTarget());
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        TDB.sync(dataset);
+    }
+
+    /**
+     * @return the graph store endpoint, the equivalent of mapping.getMetadata().getTarget()
+     */
+    public String getTarget() {
+        return getQueryTarget() + "/data";
+    }
+
+    /**
+     * @return the dataset url, the equivalent of mapping.getMetadata().getQueryTarget()
+     */
+    public String getQueryTarget() {
+        return "http://localhost:" + port + "/" + datasetName;
+    }
+
+    public Dataset getDataset() {
+        return dataset;
+    }
+
+    private interface RequestHandler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Sleeps for the configured latency before handling the request, and turns exceptions into error responses
+     */
+    private class DelayedHandler implements HttpHandler {
+        private final RequestHandler handler;
+
+        DelayedHandler(RequestHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                int delay = latencyMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                handler.handle(exchange);
+            } catch (QueryParseException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendError(exchange, 503, "server is shutting down");
+            } catch (Exception e) {
+                logger.warn("error handling " + exchange.getRequestURI(), e);
+                sendError(exchange, 500, String.valueOf(e.getMessage()));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private void handleData(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendError(exchange, 405, "only POST is supported");
+            return;
+        }
+
+        String graph = parseParams(exchange.getRequestURI().getRawQuery()).get("graph");
+        String lang = getRdfLang(exchange.getRequestHeaders().getFirst("Content-Type"));
+
+        dataset.getLock().enterCriticalSection(Lock.WRITE);
+        try (InputStream in = exchange.getRequestBody()) {
+            Model model = graph == null ? dataset.getDefaultModel() : dataset.getNamedModel(graph);
+            model.read(in, null, lang);
+        } finally {
+            dataset.getLock().leaveCriticalSection();
+        }
+        TDB.sync(dataset);
+
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void handleQuery(HttpExchange exchange) throws IOException {
+        String queryString = getParams(exchange).get("query");
+        if (queryString == null) {
+            sendError(exchange, 400, "missing query parameter");
+            return;
+        }
+
+        Query query = QueryFactory.create(queryString);
+
+        QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
+        dataset.getLock().enterCriticalSection(Lock.READ);
+        try {
+            if (query.isSelectType()) {
+                ResultSet results = qexec.execSelect();
+                try (OutputStream out = startResponse(exchange, "application/sparql-results+xml")) {
+                    ResultSetFormatter.outputAsXML(out, results);
+                }
+            } else if (query.isAskType()) {
+                boolean result = qexec.execAsk();
+                try (OutputStream out = startResponse(exchange, "application/sparql-results+xml")) {
+                    ResultSetFormatter.outputAsXML(out, result);
+                }
+            } else {
+                Model model = query.isDescribeType() ? qexec.execDescribe() : qexec.execConstruct();
+                try (OutputStream out = startResponse(exchange, "text/turtle; charset=utf-8")) {
+                    model.write(out, "TURTLE");
+                }
+            }
+        } finally {
+            qexec.close();
+            dataset.getLock().leaveCriticalSection();
+        }
+    }
+
+    private void handleUpdate(HttpExchange exchange) throws IOException {
+        String update = getParams(exchange).get("update");
+        if (update == null) {
+            sendError(exchange, 400, "missing update parameter");
+            return;
+        }
+
+        dataset.getLock().enterCriticalSection(Lock.WRITE);
+        try {
+            UpdateAction.execute(UpdateFactory.create(update), GraphStoreFactory.create(dataset));
+        } finally {
+            dataset.getLock().leaveCriticalSection();
+        }
+        TDB.sync(dataset);
+
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    /**
+     * Send the response headers for a streamed response, gzip encoding the response if the client accepts it
+     */
+    private OutputStream startResponse(HttpExchange exchange, String contentType) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            return new GZIPOutputStream(new BufferedOutputStream(exchange.getResponseBody()));
+        }
+
+        exchange.sendResponseHeaders(200, 0);
+        return new BufferedOutputStream(exchange.getResponseBody());
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            byte[] body = message.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (IOException e) {
+            // the response was already started, or the client went away
+            logger.debug("failed to send error response", e);
+        }
+    }
+
+    /**
+     * @return the url parameters, merged with the form parameters of a POST request
+     */
+    private static Map<String, String> getParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+
+        if ("POST".equals(exchange.getRequestMethod())) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            params.putAll(parseParams(new String(body.toByteArray(), StandardCharsets.UTF_8)));
+        }
+        return params;
+    }
+
+    private static Map<String, String> parseParams(String encoded) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return params;
+        }
+
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * @return the jena language name for the content type of a request body, defaulting to turtle
+     */
+    private static String getRdfLang(String contentType) {
+        if (contentType == null) {
+            return "TURTLE";
+        } else if (contentType.contains("n-triples") || contentType.startsWith("text/plain")) {
+            return "N-TRIPLE";
+        } else if (contentType.contains("rdf+xml")) {
+            return "RDF/XML";
+        }
+        return "TURTLE";
+    }
+
+    /**
+     * Start a local server, and optionally benchmark uploading and querying a triple file against it
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineParser clp = new GnuParser();
+        HelpFormatter helpf = new HelpFormatter();
+        CommandLine cl;
+
+        Options options = new Options();
+        options.addOption("h", "help", false, "print this help message and exit");
+        options.addOption("p", "port", true, "port to listen on. defaults to " + DEFAULT_PORT);
+        options.addOption("d", "tdbDirectory", true, "directory of the TDB dataset. defaults to an in-memory dataset");
+        options.addOption("l", "latency", true, "latency in milliseconds added to each request");
+        options.addOption("j", "jitter", true, "maximum random latency in milliseconds added to each request");
+        options.addOption("b", "benchmarkFile", true, "upload and query this triple file, print the timings and exit");
+        options.addOption("s", "shards", true, "number of parallel uploads in the benchmark. defaults to 4");
+
+        try {
+            cl = clp.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+
+        if (cl.hasOption("h")) {
+            helpf.printHelp("EmbeddedFusekiServer", options, true);
+            return;
+        }
+
+        int port = Integer.parseInt(cl.getOptionValue("p", String.valueOf(DEFAULT_PORT)));
+        Dataset dataset = cl.hasOption("d") ? TDBFactory.createDataset(cl.getOptionValue("d")) : TDBFactory.createDataset();
+
+        EmbeddedFusekiServer server = new EmbeddedFusekiServer(port, DEFAULT_DATASET_NAME, dataset);
+        server.setLatency(Integer.parseInt(cl.getOptionValue("l", "0")), Integer.parseInt(cl.getOptionValue("j", "0")));
+        server.start();
+
+        if (!cl.hasOption("b")) {
+            System.out.println("serving " + server.getQueryTarget() + ", press ctrl-c to stop");
+            return;
+        }
+
+        try {
+            File file = new File(cl.getOptionValue("b"));
+            int shards = Integer.parseInt(cl.getOptionValue("s", "4"));
+
+            Uploader single = new Uploader(server.getTarget(), file);
+            long start = System.currentTimeMillis();
+            single.execute();
+            System.out.println("execute: " + (System.currentTimeMillis() - start) + " ms");
+
+            Uploader batched = new Uploader(server.getTarget(), file);
+            start = System.currentTimeMillis();
+            batched.executeInBatches(10000, 0);
+            System.out.println("executeInBatches: " + (System.currentTimeMillis() - start) + " ms");
+
+            Uploader parallel = new Uploader(server.getTarget(), file);
+            start = System.currentTimeMillis();
+            parallel.executeInParallel(shards, 0);
+            System.out.println("executeInParallel(" + shards + "): " + (System.currentTimeMillis() - start) + " ms");
+
+            Uploader safe = new Uploader(server.getTarget(), file);
+            start = System.currentTimeMillis();
+            safe.safeExecute();
+            System.out.println("safeExecute: " + (System.currentTimeMillis() - start) + " ms");
+
+            start = System.currentTimeMillis();
+            Model model = FusekiClient.getInstance().construct(server.getQueryTarget() + "/query",
+                    "CONSTRUCT {?s ?p ?o} FROM <" + single.getGraphID() + "> WHERE {?s ?p ?o}");
+            System.out.println("construct " + model.size() + " triples: " + (System.currentTimeMillis() - start) + " ms");
+
+            FusekiClient.getInstance().logMetrics();
+        } finally {
+            server.stop();
+            FusekiClient.getInstance().close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package biocode.fims.fuseki;
+
+import biocode.fims.digester.Mapping;
+import biocode.fims.fuseki.query.FimsQueryBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Uploads triples to an {@link EmbeddedFusekiServer} with the {@link Uploader} and reads them back with the
+ * {@link FimsQueryBuilder}
+ */
+public class EmbeddedFusekiServerTest {
+    // the target and queryTarget in the test config.xml, which are pointed at the server
+    private static final String CONFIG_QUERY_TARGET = "http://localhost:3033/ds";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private EmbeddedFusekiServer server;
+    private Mapping mapping;
+
+    @Before
+    public void setUp() throws Exception {
+        // listen on any free port, rather than the fixed port of the config, which may be in use
+        server = EmbeddedFusekiServer.inMemory(0);
+        server.start();
+
+        File config = tempFolder.newFile("config.xml");
+        String configXml = new String(Files.readAllBytes(
+                Paths.get(getClass().getResource("/config.xml").toURI())), StandardCharsets.UTF_8);
+        Files.write(config.toPath(),
+                configXml.replace(CONFIG_QUERY_TARGET, server.getQueryTarget()).getBytes(StandardCharsets.UTF_8));
+
+        mapping = new Mapping();
+        mapping.addMappingRules(config);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void uploadsAndQueriesDataset() throws Exception {
+        FimsQueryBuilder q = upload("@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+                "<urn:sample:1> a rdfs:Resource ; <urn:materialSampleID> \"MBIO1\" ; <urn:country> \"USA\" .\n" +
+                "<urn:sample:2> a rdfs:Resource ; <urn:materialSampleID> \"MBIO2\" ; <urn:country> \"France\" .\n" +
+                // a related resource, whose properties are read into the row of the sample it depends on
+                "<urn:event:1> a rdfs:Resource ; <urn:locality> \"Moorea\" ; " +
+                "<http://biscicol.org/terms/index.html#depends_on> <urn:sample:1> .\n");
+        ArrayNode rows = q.getJSON();
+
+        JsonNode sample1 = findRow(rows, "MBIO1");
+        assertNotNull(sample1);
+        assertEquals("USA", sample1.get("country").asText());
+        assertEquals("Moorea", sample1.get("locality").asText());
+
+        JsonNode sample2 = findRow(rows, "MBIO2");
+        assertNotNull(sample2);
+        assertEquals("France", sample2.get("country").asText());
+
+        // paging a resource at a time gives the same rows
+        ArrayNode pagedRows = rows.arrayNode();
+        int total = q.forEachPage(1, pagedRows::addAll);
+        assertEquals(rows.size(), total);
+        assertEquals(sorted(rows), sorted(pagedRows));
+    }
+
+    @Test
+    public void pagesUriAndBlankNodeResources() throws Exception {
+        FimsQueryBuilder q = upload("@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+                "<urn:sample:1> a rdfs:Resource ; <urn:materialSampleID> \"MBIO1\" .\n" +
+                "<urn:sample:2> a rdfs:Resource ; <urn:materialSampleID> \"MBIO2\" .\n" +
+                "<urn:sample:3> a rdfs:Resource ; <urn:materialSampleID> \"MBIO3\" .\n" +
+                "<urn:sample:4> a rdfs:Resource ; <urn:materialSampleID> \"MBIO4\" .\n" +
+                "<urn:sample:5> a rdfs:Resource ; <urn:materialSampleID> \"MBIO5\" .\n" +
+                // blank node resources, as triplified for entities identified by BNODE columns
+                "_:sample6 a rdfs:Resource ; <urn:materialSampleID> \"MBIO6\" .\n" +
+                "_:sample7 a rdfs:Resource ; <urn:materialSampleID> \"MBIO7\" .\n" +
+                "_:sample8 a rdfs:Resource ; <urn:materialSampleID> \"MBIO8\" .\n" +
+                // a related resource of a blank node resource
+                "<urn:event:1> a rdfs:Resource ; <urn:locality> \"Moorea\" ; " +
+                "<http://biscicol.org/terms/index.html#depends_on> _:sample6 .\n");
+        ArrayNode rows = q.getJSON();
+        assertEquals(9, rows.size());
+        assertEquals(9, q.countResources());
+        assertEquals("Moorea", findRow(rows, "MBIO6").get("locality").asText());
+
+        // more uri resources than fit in a page, followed by the blank node resources
+        ArrayNode pagedRows = rows.arrayNode();
+        int total = q.forEachPage(2, pagedRows::addAll);
+        assertEquals(rows.size(), total);
+        assertEquals(sorted(rows), sorted(pagedRows));
+    }
+
+    @Test
+    public void safeExecuteKeepsSubjectsInOneBatch() throws Exception {
+        File triples = writeTriples("@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+                "_:sample1 a rdfs:Resource ; <urn:materialSampleID> \"MBIO1\" ; <urn:country> \"USA\" .\n" +
+                "_:sample2 a rdfs:Resource ; <urn:materialSampleID> \"MBIO2\" ; <urn:country> \"France\" .\n" +
+                "<urn:sample:3> a rdfs:Resource ; <urn:materialSampleID> \"MBIO3\" ; <urn:country> \"Chile\" .\n");
+        Uploader uploader = new Uploader(server.getTarget(), triples);
+        // batches of 2 triples, which end in the middle of each subject
+        uploader.safeExecute(2, false);
+
+        ArrayNode rows = query(uploader.getGraphID()).getJSON();
+        assertEquals(3, rows.size());
+        assertEquals("USA", findRow(rows, "MBIO1").get("country").asText());
+        assertEquals("France", findRow(rows, "MBIO2").get("country").asText());
+        assertEquals("Chile", findRow(rows, "MBIO3").get("country").asText());
+    }
+
+    /**
+     * Upload the turtle triples to a new graph, and return a query of that graph
+     */
+    private FimsQueryBuilder upload(String turtle) throws Exception {
+        assertEquals(server.getTarget(), String.valueOf(mapping.getMetadata().getTarget()));
+        Uploader uploader = new Uploader(server.getTarget(), writeTriples(turtle));
+        uploader.execute();
+
+        return query(uploader.getGraphID());
+    }
+
+    private File writeTriples(String turtle) throws Exception {
+        // the extension tells the uploader the triples are turtle
+        File triples = File.createTempFile("triples", ".ttl", tempFolder.getRoot());
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(triples), StandardCharsets.UTF_8)) {
+            writer.write(turtle);
+        }
+        return triples;
+    }
+
+    private FimsQueryBuilder query(String graph) {
+        return new FimsQueryBuilder(mapping, new String[]{graph}, tempFolder.getRoot().getAbsolutePath(), 0);
+    }
+
+    private static JsonNode findRow(ArrayNode rows, String materialSampleID) {
+        for (JsonNode row : rows) {
+            if (materialSampleID.equals(row.path("materialSampleID").asText())) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the rows as sorted strings. The bcid of blank node resources is left out, as their labels differ
+     * between queries
+     */
+    private static List<String> sorted(ArrayNode rows) {
+        List<String> sorted = new ArrayList<>();
+        for (JsonNode row : rows) {
+            ObjectNode copy = (ObjectNode) row.deepCopy();
+            if (!copy.path("bcid").asText().startsWith("urn:")) {
+                copy.remove("bcid");
+            }
+            sorted.add(copy.toString());
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
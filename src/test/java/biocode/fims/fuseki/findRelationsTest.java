@@ -0,0 +1,71 @@
+package biocode.fims.fuseki;
+
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the relations saved to the cache file are read back as the same nodes
+ */
+public class findRelationsTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void cachedRelationsRoundTrip() throws Exception {
+        File ontology = tempFolder.newFile("ontology.ttl");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(ontology), StandardCharsets.UTF_8)) {
+            writer.write("@prefix owl: <http://www.w3.org/2002/07/owl#> .\n" +
+                    "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+                    "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+                    "<urn:plant> a owl:Class ; rdfs:label \"plant\" ;\n" +
+                    // a value restriction on an anonymous class expression
+                    "    rdfs:subClassOf [ a owl:Restriction ; owl:onProperty <urn:hasPart> ;\n" +
+                    "        owl:someValuesFrom [ a owl:Class ; rdfs:label \"flower or fruit\" ;\n" +
+                    "            owl:unionOf ( <urn:flower> <urn:fruit> ) ] ] ;\n" +
+                    // a qualified cardinality restriction, with a typed literal
+                    "    rdfs:subClassOf [ a owl:Restriction ; owl:onProperty <urn:hasPart> ;\n" +
+                    "        owl:onClass <urn:flower> ;\n" +
+                    "        owl:qualifiedCardinality \"1\"^^xsd:nonNegativeInteger ] .\n" +
+                    "<urn:flower> a owl:Class ; rdfs:label \"flower\" .\n" +
+                    "<urn:fruit> a owl:Class ; rdfs:label \"fruit\" .\n");
+        }
+
+        List<findRelations.relation> relations =
+                new findRelations(ontology.toURI().toString(), "Turtle", true).getRelations();
+        assertTrue(relations.stream().anyMatch(r -> r.object.isAnon()));
+        assertTrue(relations.stream().anyMatch(r -> r.cardinalityRestriction != null &&
+                r.cardinalityRestriction.isLiteral() &&
+                r.cardinalityRestriction.asLiteral().getDatatypeURI() != null));
+
+        File cacheFile = new File(tempFolder.getRoot(), "relations.tsv");
+        findRelations.writeRelations(cacheFile, relations);
+        List<findRelations.relation> cached = findRelations.readRelations(cacheFile);
+
+        assertEquals(relations.size(), cached.size());
+        for (int i = 0; i < relations.size(); i++) {
+            findRelations.relation expected = relations.get(i);
+            findRelations.relation actual = cached.get(i);
+            assertNodeEquals(expected.subject, actual.subject);
+            assertNodeEquals(expected.property, actual.property);
+            assertNodeEquals(expected.object, actual.object);
+            assertNodeEquals(expected.valueRestriction, actual.valueRestriction);
+            assertNodeEquals(expected.cardinalityRestriction, actual.cardinalityRestriction);
+        }
+    }
+
+    private static void assertNodeEquals(RDFNode expected, RDFNode actual) {
+        assertEquals(expected == null ? null : expected.asNode(), actual == null ? null : actual.asNode());
+    }
+}
@@ -0,0 +1,134 @@
+package biocode.fims.fuseki.triplify;
+
+import biocode.fims.digester.Mapping;
+import biocode.fims.digester.Validation;
+import biocode.fims.run.ProcessController;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that triplifying a dataset from memory with {@link JsonTriplifier} gives the same triples as triplifying it
+ * from sqlite through D2RQ
+ */
+public class JsonTriplifierTest {
+    private static final String SHEET_NAME = "Samples";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ProcessController processController;
+    private ArrayNode dataset;
+
+    @Before
+    public void setUp() throws Exception {
+        File config = new File(getClass().getResource("/config.xml").toURI());
+
+        Mapping mapping = new Mapping();
+        mapping.addMappingRules(config);
+        Validation validation = new Validation();
+        validation.addValidationRules(config, mapping);
+
+        processController = new ProcessController(0, null);
+        processController.setMapping(mapping);
+        processController.setValidation(validation);
+
+        dataset = new ObjectMapper().createArrayNode();
+        addRow("MBIO 1", "USA", "12", "Moorea, \"Cook's Bay\"");
+        // untranslated vocabulary value, and the same locality as the first row
+        addRow("MBIO<2>", "Atlantis", "3", "Moorea, \"Cook's Bay\"");
+        // blank country, and a locality with characters that aren't allowed in a blank node label
+        addRow("MBIO_3", "", "1", "Tahiti @@ Papeete <reef> \u00e9");
+        addRow("MBIO-4", "France", "0", "\u00cele-de-France");
+    }
+
+    @Test
+    public void streamsSameTriplesAsD2RQ() throws Exception {
+        Triplifier triplifier = new Triplifier("test", tempFolder.getRoot().getAbsolutePath(), processController);
+        List<String> colNames = Lists.newArrayList(dataset.get(0).fieldNames());
+        assertTrue(triplifier.canStream(dataset));
+
+        StringWriter d2rqTriples = new StringWriter();
+        triplifier.stream(createSqliteFile(colNames), colNames, d2rqTriples);
+
+        StringWriter jsonTriples = new StringWriter();
+        triplifier.stream(dataset, jsonTriples);
+
+        // both outputs must be valid turtle, including their blank node labels
+        Model d2rqModel = readTurtle(d2rqTriples.toString());
+        Model jsonModel = readTurtle(jsonTriples.toString());
+
+        assertFalse(d2rqModel.isEmpty());
+        assertTrue("json triples differ from the D2RQ triples:\n" + jsonTriples + "\nD2RQ:\n" + d2rqTriples,
+                jsonModel.isIsomorphicWith(d2rqModel));
+    }
+
+    private void addRow(String materialSampleID, String country, String individualCount, String locality) {
+        ObjectNode row = dataset.addObject();
+        row.put("materialSampleID", materialSampleID);
+        row.put("country", country);
+        row.put("individualCount", individualCount);
+        row.put("locality", locality);
+    }
+
+    /**
+     * Load the dataset into a sqlite table named after the sheet, as Validation does before D2RQ triplifies it
+     */
+    private File createSqliteFile(List<String> colNames) throws Exception {
+        File sqliteFile = tempFolder.newFile("test.sqlite");
+        Class.forName("org.sqlite.JDBC");
+
+        StringBuilder columns = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+        for (String colName : colNames) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+                parameters.append(", ");
+            }
+            columns.append("\"").append(colName).append("\" TEXT");
+            parameters.append("?");
+        }
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + sqliteFile.getAbsolutePath())) {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("CREATE TABLE " + SHEET_NAME + " (" + columns + ")");
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO " + SHEET_NAME + " VALUES (" + parameters + ")")) {
+                for (JsonNode row : dataset) {
+                    for (int i = 0; i < colNames.size(); i++) {
+                        insert.setString(i + 1, row.get(colNames.get(i)).asText());
+                    }
+                    insert.executeUpdate();
+                }
+            }
+        }
+        return sqliteFile;
+    }
+
+    private static Model readTurtle(String triples) {
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new StringReader(triples), null, "TURTLE");
+        return model;
+    }
+}